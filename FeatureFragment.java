@@ -13,6 +13,19 @@ public class FeatureFragment extends ListFragment {
 	 */
 	private TourState tourState;
 	
+	/**
+	 * Result of the query for the checked features, used to show how many
+	 * POI's each feature has or would add to the tour.
+	 */
+	private FeatureIndex.Result facets;
+	
+	/**
+	 * The version of the selection in storage that the list view was last
+	 * updated to, and the features selected at that version, by ordinal.
+	 */
+	private long shownVersion;
+	private BitSet shownSelection;
+	
     @Override
     public void onActivityCreated(Bundle savedInstanceState) {
         super.onActivityCreated(savedInstanceState);
@@ -20,28 +33,75 @@ public class FeatureFragment extends ListFragment {
 		getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
         
 		features = Feature.values();
+		// the list view starts with no rows checked
+		shownVersion = -1;
+		shownSelection = new BitSet();
 		
 		tourState = new TourState(POIRegistry.getDefault(), new SharedPreferencesKeyValueStore(getActivity(), TourState.STORE_NAME));
 		
-		setListAdapter(new ArrayAdapter<Feature>(getActivity(), android.R.layout.simple_list_item_multiple_choice, features));
+		setListAdapter(new ArrayAdapter<Feature>(getActivity(), android.R.layout.simple_list_item_multiple_choice, features) {
+			@Override
+			public View getView(int position, View convertView, ViewGroup parent) {
+				TextView view = (TextView) super.getView(position, convertView, parent);
+				view.setText(getLabel(features[position]));
+				return view;
+			}
+		});
     }
+	
+	/**
+	 * Get the label of a feature: its name, with the number of POI's in the
+	 * tour which have it if it is checked, or else the number of POI's it
+	 * would add to the tour.
+	 */
+	private String getLabel(Feature feature) {
+		if (facets == null) {
+			return feature.getDisplayName();
+		}
+		int count = facets.getCount(feature);
+		if (count > 0) {
+			return feature.getDisplayName() + " (" + count + ")";
+		}
+		return feature.getDisplayName() + " (+" + facets.getAddedCount(feature) + ")";
+	}
+	
+	/**
+	 * Recount the POI's for the checked features, and refresh the labels.
+	 */
+	private void updateCounts(List<Feature> checkedFeatures) {
+		facets = POIRegistry.getDefault().query(FeatureQuery.anyOf(checkedFeatures));
+		((ArrayAdapter<?>) getListAdapter()).notifyDataSetChanged();
+	}
    
 
 	/**
 	 * Update the features selected in the list view, based on what is in storage.
+	 * Nothing is read if the selection has not changed since the list was last
+	 * updated, and otherwise only the rows of the features whose selection 
+	 * changed are updated.
 	 */
 	@Override
 	public void onResume() {
 		itemClicked = false;
 		
-		List<Feature> selectedFeatures = tourState.getSelectedFeatures();
-		
-		for (int i = 0; i < features.length; i++) {
-			if (selectedFeatures.contains(features[i])) {
-				getListView().setItemChecked(i, true);
-			} else {
-				getListView().setItemChecked(i, false);
+		long version = tourState.getVersion();
+		if (version != shownVersion) {
+			BitSet selection = tourState.getSelectedFeatureBits();
+			BitSet changed = (BitSet) selection.clone();
+			changed.xor(shownSelection);
+			
+			// rows are in the order of the features' ordinals
+			for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+				getListView().setItemChecked(i, selection.get(i));
 			}
+			
+			List<Feature> selectedFeatures = new ArrayList<Feature>();
+			for (int i = selection.nextSetBit(0); i >= 0; i = selection.nextSetBit(i + 1)) {
+				selectedFeatures.add(features[i]);
+			}
+			updateCounts(selectedFeatures);
+			shownVersion = version;
+			shownSelection = selection;
 		}
 		
 		super.onResume();
@@ -58,18 +118,27 @@ public class FeatureFragment extends ListFragment {
 	
 	private void updateTour() {
 		if (itemClicked){
-			SparseBooleanArray checkedPositions = getListView().getCheckedItemPositions();
-			
-			Set<Feature> selectedFeatures = new HashSet<Feature>();
-			
-			for (int i = 0; i < checkedPositions.size(); i++) {
-				if (checkedPositions.valueAt(i)) {
-					selectedFeatures.add(features[checkedPositions.keyAt(i)]);
-				}
+			List<Feature> selectedFeatures = getCheckedFeatures();
+			tourState.setSelectedFeatures(selectedFeatures);
+			// the list view already shows this selection, so onResume need
+			// not update it unless storage changes again
+			shownVersion = tourState.getVersion();
+			shownSelection = tourState.getSelectedFeatureBits();
+			updateCounts(selectedFeatures);
+		}
+	}
+	
+	private List<Feature> getCheckedFeatures() {
+		SparseBooleanArray checkedPositions = getListView().getCheckedItemPositions();
+		
+		Set<Feature> selectedFeatures = new HashSet<Feature>();
+		
+		for (int i = 0; i < checkedPositions.size(); i++) {
+			if (checkedPositions.valueAt(i)) {
+				selectedFeatures.add(features[checkedPositions.keyAt(i)]);
 			}
-			
-			tourState.setSelectedFeatures(new ArrayList<Feature>(selectedFeatures));
 		}
+		return new ArrayList<Feature>(selectedFeatures);
 	}
 	
 	@Override
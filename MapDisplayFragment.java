@@ -13,11 +13,50 @@ public class MapDisplayFragment extends Fragment {
 	 */
 	private final static GeoPoint ICICS_GEOPOINT = new GeoPoint(49.260887, -123.24902);
 
+	/**
+	 * Size in metres of the grid to which the user's location is snapped as
+	 * the start of routes and directions
+	 */
+	private final static double ROUTE_SNAP_GRID_SIZE = 15.0;
+
+	/**
+	 * Distance in metres the user may stray from the route to the tour before
+	 * a new route is requested
+	 */
+	private final static double ROUTE_CORRIDOR_WIDTH = 30.0;
+
+	/**
+	 * Maximum rate of requests made to the routing service while the routes
+	 * between POI's are warmed
+	 */
+	private final static double ROUTE_WARM_REQUESTS_PER_SECOND = 1.0;
+
+	/**
+	 * Interval in milliseconds over which legs arriving from the routing
+	 * service are gathered into one redraw (one frame at 60 frames per second)
+	 */
+	private final static long ROUTE_RENDER_INTERVAL = 16;
+
+	/**
+	 * Distance in metres from a POI at which the user is considered to have
+	 * arrived, the further distance they must move away before they are
+	 * considered to have left, and the size of the cells of the geofence grid
+	 */
+	private final static double ARRIVAL_RADIUS = 30.0;
+	private final static double ARRIVAL_HYSTERESIS = 15.0;
+	private final static double GEOFENCE_CELL_SIZE = 2 * ARRIVAL_RADIUS;
+
 	/**
 	 * Overlay for POI markers.
 	 */
 	private ItemizedIconOverlay<OverlayItem> poiOverlay;
 
+	/**
+	 * Keeps the POI markers on poiOverlay, culled to the visible part of the
+	 * map and clustered.
+	 */
+	private PoiMarkerLayer poiMarkerLayer;
+
 	/**
 	 * Overlay for the user's current location.
 	 */
@@ -44,6 +83,17 @@ public class MapDisplayFragment extends Fragment {
 	 */
 	private List<PointOfInterest> selectedPOIs;
 
+	/**
+	 * Locations of the selected POI's, in the same order, for finding the one
+	 * nearest to the user.
+	 */
+	private GeoPoints selectedPOIPoints;
+
+	/**
+	 * Kernel used to measure the distance from the user to the POI's.
+	 */
+	private final static DistanceKernel DISTANCE_KERNEL = new HaversineKernel();
+
 	/**
 	 * Wrapper for a service which calculates routes between POI's, and between
 	 * the user's current location and the nearest selected POI.
@@ -61,12 +111,62 @@ public class MapDisplayFragment extends Fragment {
 	private RouteRetriever poiRouteRetriever;
 	private RouteRetriever toTourRouteRetriever;
 
+	/**
+	 * Thread filling the route cache with the routes between all POI's
+	 */
+	private Thread routeWarmer;
+
+	/**
+	 * Routes currently drawn on each path overlay, kept so that they can be
+	 * redrawn at a different level of detail when the zoom level changes.
+	 */
+	private Map<PathOverlay, RouteRetriever> renderedRoutes = new HashMap<PathOverlay, RouteRetriever>();
+
+	/**
+	 * Metrics of the routing service, written to the log whenever the map is
+	 * paused.
+	 */
+	private InMemoryMetricsReporter routingMetrics = new InMemoryMetricsReporter();
+
+	/**
+	 * Tracks the user's progress along the route to the nearest selected POI.
+	 */
+	private RouteTracker routeTracker = new RouteTracker(ROUTE_CORRIDOR_WIDTH);
+
 	// Add fields necessary to determine user's location
 	private LocationManager manager;
 	private UserLocationListener listener;
 	private String provider;
 	private Location myLocation;
 
+	/**
+	 * Smooths and rate limits the fixes from the location provider before
+	 * they reach updateLocation.
+	 */
+	private LocationPipeline locationPipeline;
+
+	/**
+	 * Detects the user arriving at POI's.
+	 */
+	private GeofenceEngine geofences;
+
+	/**
+	 * The last fix from the location provider, and the interval at which
+	 * fixes are currently requested.
+	 */
+	private Location lastFix;
+	private long locationInterval = 10000;
+
+	/**
+	 * Passes on a fix held back by the location pipeline's rate limit.
+	 */
+	private Runnable locationFlusher = new Runnable() {
+		@Override
+		public void run() {
+			locationPipeline.flush(System.currentTimeMillis());
+		}
+	};
+
 	/**
 	 * Get routing service, current state of tour and initialize location
 	 * services.
@@ -77,11 +177,29 @@ public class MapDisplayFragment extends Fragment {
 		Log.d(LOG_TAG, "onActivityCreated");
 
 		routingService = ((UBCSustainabilityAppActivity) getActivity()).getRoutingService();
+		// foot routes are requested as shortest routes, so the way back to a
+		// previous stop is the way there reversed
+		routingService.setSymmetricRoutes(true);
+		// snap the user's location to a grid finer than the 25 metre location
+		// update distance, so that fixes close to each other share a cached
+		// route; POIs are routed between as they are
+		routingService.setSnapPolicy(new GridSnapPolicy(ROUTE_SNAP_GRID_SIZE));
+		// while the routing service is down, draw straight lines between stops
+		// rather than nothing
+		routingService.setStraightLineFallback(true);
+		routingService.setMetricsReporter(routingMetrics);
 
 		tourState = new TourState(POIRegistry.getDefault(),
 				new SharedPreferencesKeyValueStore(getActivity(),
 						TourState.STORE_NAME));
 
+		// every tour is made of routes between POI's, so fetch them all in
+		// the background and tours can then be drawn from the cache
+		if (routeWarmer == null) {
+			routeWarmer = createRouteWarmer();
+			routeWarmer.start();
+		}
+
 		// initialize location services
 		if (manager == null) {
 			getActivity();
@@ -92,6 +210,9 @@ public class MapDisplayFragment extends Fragment {
 			provider = manager.getBestProvider(criteria, true);
 
 			listener = new UserLocationListener();
+			locationPipeline = new LocationPipeline(listener);
+			geofences = new GeofenceEngine(listener, GEOFENCE_CELL_SIZE, ARRIVAL_HYSTERESIS);
+			geofences.addGeofences(POIRegistry.getDefault(), ARRIVAL_RADIUS);
 		}
 
 	}
@@ -132,6 +253,7 @@ public class MapDisplayFragment extends Fragment {
 			}
 
 			poiOverlay = createPOIOverlay();
+			poiMarkerLayer = new PoiMarkerLayer(poiOverlay);
 			tourOverlay = createTourOverlay();
 			routeToTourOverlay = createRouteToTourOverlay();
 			myLocationOverlay = createMyLocationOverlay();
@@ -142,6 +264,31 @@ public class MapDisplayFragment extends Fragment {
 			mapView.getOverlays().add(routeToTourOverlay);
 			mapView.getOverlays().add(poiOverlay);
 			mapView.getOverlays().add(myLocationOverlay);
+
+			mapView.setMapListener(new MapListener() {
+				/**
+				 * Add markers for POI's scrolled into view.
+				 */
+				@Override
+				public boolean onScroll(ScrollEvent event) {
+					return poiMarkerLayer.setViewport(mapView.getBoundingBox(),
+							mapView.getZoomLevel());
+				}
+
+				/**
+				 * Redraw the routes at the level of detail for the new zoom level,
+				 * and cluster the POI markers for it.
+				 */
+				@Override
+				public boolean onZoom(ZoomEvent event) {
+					poiMarkerLayer.setViewport(mapView.getBoundingBox(), event.getZoomLevel());
+					for (Map.Entry<PathOverlay, RouteRetriever> entry : renderedRoutes.entrySet()) {
+						entry.getKey().clearPath();
+						addRouteToOverlay(entry.getKey(), entry.getValue());
+					}
+					return true;
+				}
+			});
 		}
 
 		return mapView;
@@ -156,12 +303,12 @@ public class MapDisplayFragment extends Fragment {
 	public void onDestroyView() {
 		Log.d(LOG_TAG, "onDestroyView");
 
-		// interrupt the RouteRetrieverThreads
+		// stop the RouteRetrieverThreads
 		if (poiRouteRetriever != null)
-			poiRouteRetriever.interrupt();
+			poiRouteRetriever.cancel();
 
 		if (toTourRouteRetriever != null)
-			toTourRouteRetriever.interrupt();
+			toTourRouteRetriever.cancel();
 		
 		// fix leak IntentReceiver bug by getting the MapTileProviderBase
 		// to unregister its BroadcastReceiver in detach() method
@@ -176,6 +323,9 @@ public class MapDisplayFragment extends Fragment {
 	@Override
 	public void onDestroy() {
 		Log.d(LOG_TAG, "onDestroy");
+		if (routeWarmer != null) {
+			routeWarmer.interrupt();
+		}
 		mapView = null;
 		super.onDestroy();
 	}
@@ -193,9 +343,10 @@ public class MapDisplayFragment extends Fragment {
 		Location location = manager.getLastKnownLocation(provider);
 		updateLocation(location);
 
-		// Request location updates at most every 10 seconds
-		// or with location changes of at least 25 metres
-		manager.requestLocationUpdates(provider, 10000, 25, listener);
+		// Request location updates at most every 10 seconds (or as
+		// suggested by the location pipeline) or with location changes of
+		// at least 25 metres
+		manager.requestLocationUpdates(provider, locationInterval, 25, listener);
 
 		super.onResume();
 	}
@@ -209,6 +360,9 @@ public class MapDisplayFragment extends Fragment {
 
 		// cancel location updates
 		manager.removeUpdates(listener);
+		mapView.removeCallbacks(locationFlusher);
+
+		Log.i(LOG_TAG, "Routing metrics:\n" + routingMetrics);
 
 		super.onPause();
 	}
@@ -251,91 +405,49 @@ public class MapDisplayFragment extends Fragment {
 	 */
 	private void updateTour(List<PointOfInterest> pois) {
 		List<LatLong> points = new ArrayList<LatLong>();
-		poiOverlay.removeAllItems();
+		poiMarkerLayer.setPOIs(pois, mapView.getBoundingBox(), mapView.getZoomLevel());
+		
+		// add selected points of interest to the new list of locations. 
+		for (PointOfInterest p: pois) {
+			points.add(p.getLatLong());
+		}
+		selectedPOIPoints = new GeoPoints(points);
 		
 		// if there are no selectedPOIs, return the yellow guy at the ICICS_GEOPOINT location. 
 		if (pois.isEmpty()) {
 			LatLong YellowGuy = new LatLong(49.260887, -123.24902);
 			points.add(YellowGuy);
 		} else {
-			// plot selected points of interest and add to the new list of locations. 
-			for (PointOfInterest p: pois) {
-				plotPOI(poiOverlay, p);
-				points.add(p.getLatLong());
-			}
-			
 			// complete the tour loop
 			points.add(pois.get(0).getLatLong());
 		}
-		
+
+		// keep the legs which the new tour shares with the one drawn, so that
+		// only the legs touched by the change are requested
+		RouteRetriever previous = renderedRoutes.remove(tourOverlay);
+		List<RouteInfo> knownLegs = null;
+		if (previous != null) {
+			knownLegs = new TourDiff(previous.getPoints(), previous.getLegs(), points).getLegs();
+		}
+
 		// clear the current tourOverlay path and update the overlay with the new points
 		tourOverlay.clearPath();
-		findRouteAndUpdateOverlay(poiRouteRetriever, tourOverlay, points, true);
-	}
-
-	/**
-	 * Plot a POI on the specified overlay.
-	 * 
-	 * @param overlay
-	 * 			The ItemizedIconOverlay<OverlayItem> to which the PointOfInterest will be plotted onto.
-	 * @param poi
-	 * 			The PointOfInterest that is getting plotted.
-	 */
-	private void plotPOI(ItemizedIconOverlay<OverlayItem> overlay, PointOfInterest poi) {
-		String name = poi.getDisplayName();
-		String description = poi.getDescription();
-		Double latitude = poi.getLatLong().getLatitude();
-		Double longitude = poi.getLatLong().getLongitude();			
-		
-		GeoPoint gp = new GeoPoint(latitude, longitude);
-		
-		OverlayItem oi = new OverlayItem(name, description, gp);
-		overlay.addItem(oi);
+		poiRouteRetriever = findRouteAndUpdateOverlay(poiRouteRetriever, tourOverlay, points,
+				knownLegs, true);
 	}
 
 	/**
 	 * Given a location and a list of POI's, find the POI closest to the
 	 * specified location.
 	 * 
-	 * This is based on "line-of-sight" distance between points, using an
-	 * approximation which works okay for short distances (surface of the earth
-	 * is approximated by a plane).
+	 * This is based on "line-of-sight" (great circle) distance between points.
+	 * The POI locations are taken from selectedPOIPoints, which must hold the
+	 * locations of pois in the same order, so no objects are allocated.
 	 */
 	private PointOfInterest findClosestPOI(Location location, List<PointOfInterest> pois) {
-		double approxLatitude = pois.get(0).getLatLong().getLatitude();
-
-		PointOfInterest closest = null;
-		double minDistValue = Double.MAX_VALUE;
-
-		LatLong locationLatLong = new LatLong(location.getLatitude(),
-				location.getLongitude());
-
-		for (PointOfInterest poi : pois) {
-			double distValue = getDistanceValue(approxLatitude,
-					locationLatLong, poi.getLatLong());
-			if (distValue < minDistValue) {
-				minDistValue = distValue;
-				closest = poi;
-			}
-		}
-
-		return closest;
-	}
-
-	/**
-	 * Get a value representing the "line-of-sight" distance between two points,
-	 * using an approximation which works okay for short distances (surface of
-	 * the earth is approximated by a plane).
-	 * 
-	 * The value returned is only usable for comparison purposes (i.e. it has a
-	 * nonlinear relationship to the actual distance).
-	 */
-	private double getDistanceValue(double approxLatitude, LatLong pointA, LatLong pointB) {
-		double latAdjust = Math.cos(Math.PI * approxLatitude / 180.0);
-		double latDiff = pointA.getLatitude() - pointB.getLatitude();
-		double longDiff = pointA.getLongitude() - pointB.getLongitude();
-
-		return Math.pow(latDiff, 2) + Math.pow(latAdjust * longDiff, 2);
+		int index = DISTANCE_KERNEL.nearest(location.getLatitude(),
+				location.getLongitude(), selectedPOIPoints);
+		return index < 0 ? null : pois.get(index);
 	}
 
 	/**
@@ -365,9 +477,14 @@ public class MapDisplayFragment extends Fragment {
 			
 			/**
 			 * Display directions to the POI in dialog box when user presses down on it.
+			 * Directions are normally prefetched when the user's location changes;
+			 * if they are not ready yet, the dialog is updated when they arrive.
+			 * A cluster marker has no single destination, so it just shows the
+			 * names of its POI's, like a tap.
 			 * 
 			 * @param index
-			 *            index of item tapped
+			 *            index of item tapped (markers are kept in the order they
+			 *            were added, not the order of the selected POI's)
 			 * @param oi
 			 *            the OverlayItem that was tapped
 			 * @return true to indicate that tap event has been handled
@@ -377,10 +494,15 @@ public class MapDisplayFragment extends Fragment {
 			// which displays the directions from the user's location
 			// to the selected point of interest
 			public boolean onItemLongPress(int index, OverlayItem oi) {				
-				new AlertDialog.Builder(getActivity())
+				List<PointOfInterest> pois = poiMarkerLayer.getPOIs(oi);
+				if (pois.size() != 1) {
+					return onItemSingleTapUp(index, oi);
+				}
+				AlertDialog dialog = new AlertDialog.Builder(getActivity())
 				.setPositiveButton(R.string.ok_btn, null)
-				.setTitle(oi.getTitle()).setMessage(getDirections(index))
+				.setTitle(oi.getTitle()).setMessage("Finding directions...")
 				.show();
+				showDirections(dialog, pois.get(0));
 				return true;
 			}
 		};
@@ -390,29 +512,87 @@ public class MapDisplayFragment extends Fragment {
 						R.drawable.map_pin_blue), gestureListener, rp);
 	}
 
-	private String getDirections(int index){
-		String result = "";
+	/**
+	 * Show directions from the user's location to a selected POI in a dialog.
+	 * Cached directions are shown at once; otherwise they are retrieved in a
+	 * separate thread, so that the UI thread is not blocked.
+	 * 
+	 * @param dialog
+	 * 			The dialog whose message is set to the directions.
+	 * @param target
+	 * 			The POI to give directions to.
+	 */
+	private void showDirections(final AlertDialog dialog, PointOfInterest target){
 		if(myLocation == null){
-			return "User's location unknown: unable to find directions";
+			dialog.setMessage("User's location unknown: unable to find directions");
+			return;
 		}
 		double lat = myLocation.getLatitude();
 		double lon = myLocation.getLongitude();
-		LatLong latlon = new LatLong(lat, lon);
-		PointOfInterest target = tourState.getSelectedPOIs().get(index);
+		final LatLong latlon = routingService.snapLocation(new LatLong(lat, lon));
 		if(target == null){
-			return "Unknown POI destination: unable to find directions";
+			dialog.setMessage("Unknown POI destination: unable to find directions");
+			return;
 		}
-		LatLong dest_latlon = target.getLatLong();
-		try {
-			result += ((UBCSustainabilityAppActivity)getActivity())
-					.getRoutingService().getDirections(latlon, dest_latlon);
-		} catch (IOException e) {
-			e.printStackTrace();
+		final LatLong dest_latlon = target.getLatLong();
+		String cached = routingService.getCachedDirections(latlon, dest_latlon);
+		if (cached != null) {
+			dialog.setMessage(cached);
+			return;
 		}
-		result = result.replaceAll("<br>", " ");
-		return result;
+
+		new Thread() {
+			@Override
+			public void run() {
+				String result = null;
+				try {
+					result = routingService.getDirections(latlon, dest_latlon);
+				} catch (IOException e) {
+					Log.e(LOG_TAG, "Error retrieving directions from route service");
+				}
+				final String message = result != null ? result
+						: "Unable to find directions";
+				// post through the map rather than the activity, which is
+				// null if the fragment was detached while waiting
+				mapView.post(new Runnable() {
+					@Override
+					public void run() {
+						if (dialog.isShowing()) {
+							dialog.setMessage(message);
+						}
+					}
+				});
+			}
+		}.start();
 	}
 	
+	/**
+	 * Create a thread which warms the routes between all registered POI's, at
+	 * a low priority.
+	 */
+	private Thread createRouteWarmer() {
+		List<LatLong> points = new ArrayList<LatLong>();
+		for (PointOfInterest poi : POIRegistry.getDefault().getPointsByLocation()) {
+			points.add(poi.getLatLong());
+		}
+		RouteMatrixWarmer warmer = new RouteMatrixWarmer(routingService, points);
+		warmer.setRequestsPerSecond(ROUTE_WARM_REQUESTS_PER_SECOND);
+		warmer.setProgressListener(new RouteMatrixWarmer.ProgressListener() {
+			@Override
+			public void onProgress(int done, int total, int fetched) {
+				Log.d(LOG_TAG, "Warmed " + done + " of " + total + " POI routes");
+			}
+
+			@Override
+			public void onFinished(boolean completed) {
+				Log.d(LOG_TAG, completed ? "POI routes warmed" : "POI route warming stopped");
+			}
+		});
+		Thread thread = new Thread(warmer, "RouteMatrixWarmer");
+		thread.setPriority(Thread.MIN_PRIORITY);
+		return thread;
+	}
+
 	/**
 	 * Create the overlay for the user's current location.
 	 */
@@ -460,6 +640,11 @@ public class MapDisplayFragment extends Fragment {
 	 *            route.
 	 * @param points
 	 *            Points which the route must pass through.
+	 * @param knownLegs
+	 *            Routes already known for the legs between the points, with
+	 *            null for legs to request, or null to request every leg. Known
+	 *            legs are drawn at once, and the others as straight lines
+	 *            until they arrive.
 	 * @param useCache
 	 *            If set to true, the routing service will return a cached route
 	 *            if one is available (and will cache the result if no cached
@@ -467,78 +652,199 @@ public class MapDisplayFragment extends Fragment {
 	 * @return new route retriever instance
 	 */
 	private RouteRetriever findRouteAndUpdateOverlay(RouteRetriever retriever,
-			PathOverlay overlay, List<LatLong> points, boolean useCache) {
+			PathOverlay overlay, List<LatLong> points, List<RouteInfo> knownLegs,
+			boolean useCache) {
 		// Retrieve routes in a separate thread, as it can take some time and we
 		// do not want to block the UI thread.
-		if (retriever != null && retriever.isAlive()) { // thread is still running so interrupt it
-			retriever.interrupt();
-			overlay.clearPath();
+		if (retriever != null) {
+			// cancelled even if the thread has ended, as it may still have
+			// redraws queued on the UI thread
+			retriever.cancel();
+			if (retriever.isAlive()) {
+				overlay.clearPath();
+			}
 		}
-		retriever = new RouteRetriever(overlay, points, useCache);
+		retriever = new RouteRetriever(overlay, points, knownLegs, useCache);
+		addRouteToOverlay(overlay, retriever);
 		retriever.start();
 		return retriever;
 	}
 
 	/**
-	 * Add a route to the specified overlay.
+	 * Add a route to the specified overlay, at the level of detail for the
+	 * current zoom level of the map. While the route is being retrieved, legs
+	 * which have not arrived yet are drawn as straight lines.
 	 * 
 	 * @param overlay
 	 * 			The PathOverlay to which we are adding the route.
-	 * @param waypoints
-	 * 			The List<LatLong> that the route is made up of.
+	 * @param route
+	 * 			The RouteRetriever holding the points and legs that the route is made up of.
 	 */
-	private void addRouteToOverlay(PathOverlay overlay, List<LatLong> waypoints) {
-		for (LatLong ll: waypoints) {
-			Double latitude = ll.getLatitude();
-			Double longitude = ll.getLongitude();
-			GeoPoint gp = new GeoPoint(latitude, longitude); 
-					
-			overlay.addPoint(gp);
+	private void addRouteToOverlay(PathOverlay overlay, RouteRetriever route) {
+		int zoomLevel = mapView.getZoomLevel();
+		List<RouteInfo> legs = route.getLegs();
+		List<LatLong> points = route.getPoints();
+		
+		for (int i = 0; i < legs.size(); i++) {
+			RouteInfo info = legs.get(i);
+			if (info != null) {
+				addPointToOverlay(overlay, points.get(i));
+				for (LatLong ll: info.getWaypointsForZoom(zoomLevel)) {
+					addPointToOverlay(overlay, ll);
+				}
+				addPointToOverlay(overlay, points.get(i + 1));
+			} else if (!route.isFinished()) {
+				addPointToOverlay(overlay, points.get(i));
+				addPointToOverlay(overlay, points.get(i + 1));
+			}
 		}
 	}
 
+	/**
+	 * Add a single point to the specified overlay.
+	 */
+	private void addPointToOverlay(PathOverlay overlay, LatLong ll) {
+		Double latitude = ll.getLatitude();
+		Double longitude = ll.getLongitude();
+		GeoPoint gp = new GeoPoint(latitude, longitude); 
+				
+		overlay.addPoint(gp);
+	}
+
 	/**
 	 * Calls the routing service to obtain a route which connects the specified
 	 * list of lat/long points, and updates the overlay provided with the
 	 * resulting route.
 	 * 
 	 * Routes are retrieved in a separate thread, as it can take some time and
-	 * we do not want to block the UI thread.
+	 * we do not want to block the UI thread. Legs are drawn as they arrive, with
+	 * the redraws for legs arriving close together gathered into one.
 	 */
 	private class RouteRetriever extends Thread {
 		private PathOverlay overlay;
 		private List<LatLong> points;
 		private boolean useCache;
 		private boolean routeRetrieved;
-
-		public RouteRetriever(PathOverlay overlay, List<LatLong> points, boolean useCache) {
+		private volatile boolean routeApproximate;
+		private List<RouteInfo> legs;
+		private volatile boolean finished;
+		private AtomicBoolean renderScheduled = new AtomicBoolean();
+
+		/**
+		 * Set when the route is replaced or the view destroyed, after which
+		 * nothing more is drawn for it.
+		 */
+		private volatile boolean cancelled;
+
+		public RouteRetriever(PathOverlay overlay, List<LatLong> points,
+				List<RouteInfo> knownLegs, boolean useCache) {
 			this.overlay = overlay;
 			this.points = points;
 			this.useCache = useCache;
 			this.routeRetrieved = false;
+			// legs are filled in by the retrieving thread and drawn by the
+			// UI thread
+			this.legs = Collections.synchronizedList(new ArrayList<RouteInfo>());
+			for (int i = 1; i < points.size(); i++) {
+				legs.add(knownLegs == null ? null : knownLegs.get(i - 1));
+			}
+		}
+
+		/**
+		 * Stop retrieving the route, and drop any redraws of it which are
+		 * still queued on the UI thread.
+		 */
+		public void cancel() {
+			cancelled = true;
+			interrupt();
+		}
+
+		/**
+		 * Indicates whether retrieval has ended, so that legs which are still
+		 * missing will not arrive.
+		 */
+		public boolean isFinished() {
+			return finished;
+		}
+
+		/**
+		 * Redraw the route on the UI thread after the render interval, unless
+		 * a redraw is already scheduled.
+		 */
+		private void scheduleRender() {
+			if (!renderScheduled.compareAndSet(false, true)) {
+				return;
+			}
+			mapView.postDelayed(new Runnable() {
+				@Override
+				public void run() {
+					renderScheduled.set(false);
+					if (!cancelled) {
+						overlay.clearPath();
+						addRouteToOverlay(overlay, RouteRetriever.this);
+						mapView.invalidate();
+					}
+				}
+			}, ROUTE_RENDER_INTERVAL);
+		}
+
+		/**
+		 * Points which the route passes through.
+		 */
+		public List<LatLong> getPoints() {
+			return points;
+		}
+
+		/**
+		 * Route between each pair of consecutive points, or null where no
+		 * route was found.
+		 */
+		public List<RouteInfo> getLegs() {
+			return legs;
+		}
+
+		/**
+		 * The legs of the route joined into a single path, at full detail.
+		 */
+		public List<LatLong> getPath() {
+			List<LatLong> path = new ArrayList<LatLong>();
+			for (int i = 0; i < legs.size(); i++) {
+				if (legs.get(i) != null) {
+					path.add(points.get(i));
+					path.addAll(legs.get(i).getWaypoints());
+					path.add(points.get(i + 1));
+				}
+			}
+			return path;
 		}
 
 		@Override
 		public void run() {
+			RouteTrace trace = routingService.startTrace(overlay == tourOverlay ? "tour" : "routeToTour");
 			try {
 				if (points.size() > 1) {
-					int i = 1;
-					final List<LatLong> waypoints = new ArrayList<LatLong>();
-
-					while (i < points.size() && !isInterrupted()) {
-						LatLong currPoint = points.get(i - 1);
-						LatLong nextPoint = points.get(i);
-						RouteInfo info = routingService.getRoute(currPoint,
-								nextPoint, useCache);
-
-						if (info != null) {
-							waypoints.add(currPoint);
-							waypoints.addAll(info.getWaypoints());
-							waypoints.add(nextPoint);
+					// request each run of missing legs in one call; the
+					// routing service requests all uncached legs of a run at
+					// once if it can, or else concurrently, and passes back
+					// each leg as it arrives
+					for (int[] run : TourDiff.getMissingRuns(legs)) {
+						final int offset = run[0];
+						routingService.getRoutes(points.subList(run[0], run[1] + 1), useCache,
+								new RoutingService.LegListener() {
+									@Override
+									public void onLeg(int index, RouteInfo info) {
+										legs.set(offset + index, info);
+										if (info != null && info.isApproximate()) {
+											routeApproximate = true;
+										}
+										scheduleRender();
+									}
+								});
+						if (isInterrupted()) {
+							break;
 						}
-
-						i++;
 					}
+					finished = true;
 
 					if (!isInterrupted()) {
 						// Updates to the UI must run on the UI thread.
@@ -546,7 +852,16 @@ public class MapDisplayFragment extends Fragment {
 
 							@Override
 							public void run() {
-								addRouteToOverlay(overlay, waypoints);
+								if (cancelled) {
+									return;
+								}
+								renderedRoutes.put(overlay, RouteRetriever.this);
+								// replace any known legs drawn before the retrieval
+								overlay.clearPath();
+								addRouteToOverlay(overlay, RouteRetriever.this);
+								if (overlay == routeToTourOverlay) {
+									routeTracker.setRoute(getPath(), points.get(points.size() - 1));
+								}
 								mapView.invalidate();
 							}
 
@@ -557,8 +872,14 @@ public class MapDisplayFragment extends Fragment {
 				}
 			} catch (Exception e) {
 				Log.e(LOG_TAG, "Error retrieving route from route service");
+				// keep the legs which did arrive, without placeholders
+				finished = true;
+				if (!isInterrupted()) {
+					scheduleRender();
+				}
 
 			} finally {
+				trace.end();
 				
 				if (!isInterrupted()) {
 					getActivity().runOnUiThread(new Runnable() {
@@ -566,7 +887,7 @@ public class MapDisplayFragment extends Fragment {
 						@Override
 						public void run() {
 							// display message to user
-							if (!routeRetrieved) {
+							if (!cancelled && (!routeRetrieved || routeApproximate)) {
 								Toast toast = Toast.makeText(getActivity(),
 										R.string.rs_na_label, Toast.LENGTH_SHORT);
 								toast.show();
@@ -590,25 +911,115 @@ public class MapDisplayFragment extends Fragment {
 		}
 
 		routeToTourOverlay.clearPath();
+		renderedRoutes.remove(routeToTourOverlay);
 		if (selectedPOIs != null && location != null && selectedPOIs.size() > 0) {
 			PointOfInterest closestPOI = findClosestPOI(location, selectedPOIs);
-			List<LatLong> latLongs = new ArrayList<LatLong>();
 			LatLong latLong = new LatLong(location.getLatitude(),
 					location.getLongitude());
-			latLongs.add(latLong);
+
+			// have directions to every stop ready for a long press
+			List<LatLong> stops = new ArrayList<LatLong>();
+			for (PointOfInterest poi : selectedPOIs) {
+				stops.add(poi.getLatLong());
+			}
+			LatLong start = routingService.snapLocation(latLong);
+			routingService.prefetchDirections(start, stops);
+
+			// while the user is still on the route to the same POI, just drop
+			// the part of the route which has been walked
+			if (closestPOI.getLatLong().equals(routeTracker.getDestination())) {
+				List<LatLong> remaining = routeTracker.update(latLong);
+				if (remaining != null) {
+					// drop any redraw of the full route still queued
+					if (toTourRouteRetriever != null) {
+						toTourRouteRetriever.cancel();
+					}
+					// draw the rest of the route as a single leg from the
+					// user's location, kept for redrawing when the zoom
+					// level changes
+					List<LatLong> ends = new ArrayList<LatLong>();
+					ends.add(latLong);
+					ends.add(remaining.get(remaining.size() - 1));
+					List<RouteInfo> leg = new ArrayList<RouteInfo>();
+					leg.add(new RouteInfo(new ArrayList<LatLong>(
+							remaining.subList(0, remaining.size() - 1))));
+					RouteRetriever tracked = new RouteRetriever(routeToTourOverlay, ends, leg, false);
+					renderedRoutes.put(routeToTourOverlay, tracked);
+					addRouteToOverlay(routeToTourOverlay, tracked);
+					mapView.invalidate();
+					return;
+				}
+			}
+			routeTracker.clear();
+
+			List<LatLong> latLongs = new ArrayList<LatLong>();
+			latLongs.add(start);
 			latLongs.add(closestPOI.getLatLong());
 
 			toTourRouteRetriever = findRouteAndUpdateOverlay(
-					toTourRouteRetriever, routeToTourOverlay, latLongs, false);
+					toTourRouteRetriever, routeToTourOverlay, latLongs, null, true);
 		}
 	}
 
-	private class UserLocationListener implements LocationListener {
+	private class UserLocationListener implements LocationListener,
+			LocationPipeline.Listener, GeofenceEngine.Listener {
 
+		/**
+		 * Pass the fix through the location pipeline, which calls
+		 * onLocation if the user has moved enough to update the routes.
+		 */
 		@Override
 		public void onLocationChanged(Location location) {
-			updateLocation(location);
+			lastFix = location;
+			long now = System.currentTimeMillis();
+			locationPipeline.submit(location.getLatitude(), location.getLongitude(),
+					location.hasAccuracy() ? location.getAccuracy() : 0,
+					location.hasSpeed() ? location.getSpeed() : -1, now);
+
+			// a fix held back by the rate limit is passed on later, unless a
+			// newer fix replaces it first
+			mapView.removeCallbacks(locationFlusher);
+			long delay = locationPipeline.getPendingDelay(now);
+			if (delay >= 0) {
+				mapView.postDelayed(locationFlusher, delay);
+			}
+		}
+
+		/**
+		 * Update the map with a smoothed location, and ask for fixes as often
+		 * as the user's speed needs.
+		 */
+		@Override
+		public void onLocation(double latitude, double longitude, float accuracy) {
+			Location smoothed = new Location(lastFix);
+			smoothed.setLatitude(latitude);
+			smoothed.setLongitude(longitude);
+			smoothed.setAccuracy(accuracy);
+			updateLocation(smoothed);
+			geofences.update(latitude, longitude);
+
+			long interval = locationPipeline.getSuggestedInterval();
+			if (interval != locationInterval) {
+				locationInterval = interval;
+				manager.requestLocationUpdates(provider, locationInterval, 25, listener);
+			}
+		}
 
+		/**
+		 * Tell the user when they reach a POI on their tour.
+		 */
+		@Override
+		public void onEnter(PointOfInterest poi) {
+			if (selectedPOIs != null && selectedPOIs.contains(poi)) {
+				Toast.makeText(getActivity(),
+						getString(R.string.arrived_label, poi.getDisplayName()),
+						Toast.LENGTH_LONG).show();
+			}
+		}
+
+		@Override
+		public void onExit(PointOfInterest poi) {
+			// nothing to do when the user leaves a POI
 		}
 
 		@Override
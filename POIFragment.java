@@ -4,6 +4,30 @@ public class POIFragment extends ListFragment {
 	 * All of the available points of interest.
 	 */
 	private PointOfInterest[] points;
+	
+	/**
+	 * The points shown in the list view, which are all of the points unless
+	 * the list is filtered by a search.
+	 */
+	private List<PointOfInterest> shownPoints;
+	
+	/**
+	 * The points selected, whether or not they are shown.
+	 */
+	private Set<PointOfInterest> selectedPoints = new HashSet<PointOfInterest>();
+	
+	/**
+	 * The row of each point shown in the list view.
+	 */
+	private Map<PointOfInterest, Integer> rows = new HashMap<PointOfInterest, Integer>();
+	
+	/**
+	 * The version of the selection in storage that the list view was last
+	 * updated to, and the selection at that version, with a bit for each
+	 * point in walking tour order.
+	 */
+	private long shownVersion;
+	private BitSet shownSelection;
 
 	/**
 	 * Manages and stores selected features and POI's.
@@ -26,27 +50,115 @@ public class POIFragment extends ListFragment {
 		
 		tourState = new TourState(POIRegistry.getDefault(), new SharedPreferencesKeyValueStore(getActivity(), TourState.STORE_NAME));
 		
+		shownPoints = Arrays.asList(points);
+		updateRows();
+		// the list view starts with no rows checked
+		shownVersion = -1;
+		shownSelection = new BitSet();
+		
 		setListAdapter(new ArrayAdapter<PointOfInterest>(getActivity(), android.R.layout.simple_list_item_multiple_choice, 
-				points));
+				new ArrayList<PointOfInterest>(shownPoints)) {
+			private Filter filter = new SearchFilter(this);
+			
+			@Override
+			public Filter getFilter() {
+				return filter;
+			}
+		});
 		
 		getListView().setChoiceMode(ListView.CHOICE_MODE_MULTIPLE);
+		// typing filters the list through the registry's search index
+		getListView().setTextFilterEnabled(true);
+	}
+	
+	/**
+	 * Filters the list view to the points matching what the user types, best
+	 * match first. The search runs on the filter's background thread.
+	 */
+	private class SearchFilter extends Filter {
+		private ArrayAdapter<PointOfInterest> adapter;
+		
+		private SearchFilter(ArrayAdapter<PointOfInterest> adapter) {
+			this.adapter = adapter;
+		}
+		
+		@Override
+		protected FilterResults performFiltering(CharSequence constraint) {
+			List<PointOfInterest> matches;
+			if (constraint == null || constraint.toString().trim().length() == 0) {
+				matches = Arrays.asList(points);
+			} else {
+				matches = POIRegistry.getDefault().search(constraint.toString(), points.length);
+			}
+			FilterResults results = new FilterResults();
+			results.values = matches;
+			results.count = matches.size();
+			return results;
+		}
+		
+		@SuppressWarnings("unchecked")
+		@Override
+		protected void publishResults(CharSequence constraint, FilterResults results) {
+			shownPoints = (List<PointOfInterest>) results.values;
+			adapter.setNotifyOnChange(false);
+			adapter.clear();
+			for (PointOfInterest poi : shownPoints) {
+				adapter.add(poi);
+			}
+			adapter.notifyDataSetChanged();
+			updateRows();
+			updateCheckedItems();
+		}
+	}
+	
+	private void updateRows() {
+		rows.clear();
+		for (int i = 0; i < shownPoints.size(); i++) {
+			rows.put(shownPoints.get(i), i);
+		}
+	}
+	
+	/**
+	 * Check the rows of the selected points, and uncheck the others.
+	 */
+	private void updateCheckedItems() {
+		for (int i = 0; i < shownPoints.size(); i++) {
+			getListView().setItemChecked(i, selectedPoints.contains(shownPoints.get(i)));
+		}
 	}
 
     
 	/**
 	 * Update the list of selected points, based on what is found in storage.
+	 * Nothing is read if the selection has not changed since the list was
+	 * last updated, and otherwise only the rows of the points whose
+	 * selection changed are updated.
 	 */
 	@Override
 	public void onResume() {
 		itemClicked = false;
 		
-		List<PointOfInterest> selectedPoints = tourState.getSelectedPOIs();
-		for (int i = 0; i < points.length; i++) {
-			if (selectedPoints.contains(points[i])) {
-				getListView().setItemChecked(i, true);
-			} else {
-				getListView().setItemChecked(i, false);
+		long version = tourState.getVersion();
+		if (version != shownVersion) {
+			List<PointOfInterest> byLocation = POIRegistry.getDefault().getPointsByLocation();
+			BitSet selection = tourState.getSelectedPOIBits();
+			BitSet changed = (BitSet) selection.clone();
+			changed.xor(shownSelection);
+			
+			for (int i = changed.nextSetBit(0); i >= 0; i = changed.nextSetBit(i + 1)) {
+				PointOfInterest poi = byLocation.get(i);
+				if (selection.get(i)) {
+					selectedPoints.add(poi);
+				} else {
+					selectedPoints.remove(poi);
+				}
+				Integer row = rows.get(poi);
+				if (row != null) {
+					getListView().setItemChecked(row, selection.get(i));
+				}
 			}
+			shownVersion = version;
+			shownSelection = selection;
 		}
 		
 		super.onResume();
@@ -62,23 +174,32 @@ public class POIFragment extends ListFragment {
 
 	private void updateTour() {
 		if (itemClicked) {
-			SparseBooleanArray checkedPositions = getListView().getCheckedItemPositions();
-			
+			// the list view may be filtered, so take the selection from
+			// selectedPoints rather than the checked rows
 			List<PointOfInterest> selectedPOIs = new ArrayList<PointOfInterest>();
 			
-			for (int i = 0; i < checkedPositions.size(); i++) {
-				if (checkedPositions.valueAt(i)) {
-					selectedPOIs.add(points[checkedPositions.keyAt(i)]);
+			for (PointOfInterest poi : points) {
+				if (selectedPoints.contains(poi)) {
+					selectedPOIs.add(poi);
 				}
 			}
 			
 			tourState.setSelectedPOIs(selectedPOIs);
+			// the list view already shows this selection, so onResume need
+			// not update it unless storage changes again
+			shownVersion = tourState.getVersion();
+			shownSelection = tourState.getSelectedPOIBits();
 		}
 	}
 	
 	
 	@Override
 	public void onListItemClick(ListView l, View v, int position, long id) {
+		if (l.isItemChecked(position)) {
+			selectedPoints.add(shownPoints.get(position));
+		} else {
+			selectedPoints.remove(shownPoints.get(position));
+		}
 		itemClicked = true;
 		updateTour();
 		((ITourUpdate) getActivity()).updateMap();
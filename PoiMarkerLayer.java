@@ -0,0 +1,273 @@
+/**
+ * Keeps the markers of an overlay in step with a list of POI's. Only POI's within (or near) the
+ * visible part of the map are given markers, and POI's which are close together at the current
+ * zoom level are grouped into a single cluster marker, so the number of markers drawn stays small
+ * however many POI's there are.
+ *
+ * Markers are kept across updates: when the POI's, the viewport or the zoom level change, the
+ * markers which are still wanted are left alone, and only those which changed are removed from or
+ * added to the overlay.
+ */
+public class PoiMarkerLayer {
+	/**
+	 * Size in pixels of the grid cells in which POI's are clustered.
+	 */
+	private final static int CLUSTER_CELL_PIXELS = 48;
+
+	/**
+	 * Fraction of the viewport's width and height added on each side when culling, so that
+	 * markers are already in place when the map is scrolled a little.
+	 */
+	private final static double VIEWPORT_PADDING = 0.5;
+
+	/**
+	 * A marker on the overlay, and the POI's it stands for.
+	 */
+	private static class Marker {
+		private OverlayItem item;
+		private List<PointOfInterest> pois;
+
+		private Marker(OverlayItem item, List<PointOfInterest> pois) {
+			this.item = item;
+			this.pois = pois;
+		}
+	}
+
+	private ItemizedIconOverlay<OverlayItem> overlay;
+
+	/**
+	 * The POI's shown, and their locations in degrees, in the same order.
+	 */
+	private List<PointOfInterest> pois = new ArrayList<PointOfInterest>();
+	private double[] latitudes = new double[0];
+	private double[] longitudes = new double[0];
+
+	/**
+	 * Markers on the overlay by key, and by overlay item.
+	 */
+	private Map<String, Marker> markers = new HashMap<String, Marker>();
+	private Map<OverlayItem, Marker> markersByItem = new HashMap<OverlayItem, Marker>();
+
+	/**
+	 * Area in microdegrees (north, south, east, west) for which markers were last computed, or
+	 * null if there is none, and the zoom level they were computed for.
+	 */
+	private int[] coveredArea;
+	private int coveredZoomLevel;
+
+	/**
+	 * Create a layer.
+	 *
+	 * @param overlay
+	 * 			The overlay the markers are added to. The layer takes over all
+	 * 			of its items.
+	 */
+	public PoiMarkerLayer(ItemizedIconOverlay<OverlayItem> overlay) {
+		this.overlay = overlay;
+		overlay.removeAllItems();
+	}
+
+	/**
+	 * Set the POI's to show, and update the markers for the given viewport.
+	 *
+	 * @param pois
+	 * 			The POI's to show.
+	 * @param viewport
+	 * 			The visible part of the map, or null to show every POI.
+	 * @param zoomLevel
+	 * 			The zoom level of the map.
+	 */
+	public void setPOIs(List<PointOfInterest> pois, BoundingBoxE6 viewport, int zoomLevel) {
+		this.pois = new ArrayList<PointOfInterest>(pois);
+		latitudes = new double[pois.size()];
+		longitudes = new double[pois.size()];
+		for (int i = 0; i < latitudes.length; i++) {
+			latitudes[i] = this.pois.get(i).getLatLong().getLatitude();
+			longitudes[i] = this.pois.get(i).getLatLong().getLongitude();
+		}
+		coveredArea = null;
+		setViewport(viewport, zoomLevel);
+	}
+
+	/**
+	 * Update the markers after the map has been scrolled or zoomed. Nothing is done if the
+	 * viewport is still within the area covered by the markers at the same zoom level.
+	 *
+	 * @param viewport
+	 * 			The visible part of the map, or null to show every POI.
+	 * @param zoomLevel
+	 * 			The zoom level of the map.
+	 * @return true if any marker was added or removed.
+	 */
+	public boolean setViewport(BoundingBoxE6 viewport, int zoomLevel) {
+		int[] area = getArea(viewport);
+		if (coveredArea != null && zoomLevel == coveredZoomLevel && contains(coveredArea, area)) {
+			return false;
+		}
+		coveredArea = pad(area);
+		coveredZoomLevel = zoomLevel;
+		return update(cluster(coveredArea, zoomLevel));
+	}
+
+	/**
+	 * Get the POI's a marker stands for.
+	 *
+	 * @param item
+	 * 			An item of the overlay.
+	 * @return The POI's, of which there is more than one if the marker is a cluster, or an empty
+	 *         list if the item is not one of this layer's markers.
+	 */
+	public List<PointOfInterest> getPOIs(OverlayItem item) {
+		Marker marker = markersByItem.get(item);
+		if (marker == null) {
+			return Collections.emptyList();
+		}
+		return Collections.unmodifiableList(marker.pois);
+	}
+
+	/**
+	 * Group the POI's within an area into cells of the clustering grid.
+	 *
+	 * @return The POI's in each non-empty cell, by cell.
+	 */
+	private Map<Long, List<PointOfInterest>> cluster(int[] area, int zoomLevel) {
+		// degrees per pixel, along a line of latitude and along a meridian in
+		// the middle of the area
+		double lonPerPixel = 360.0 / (256L << zoomLevel);
+		double middle = area == null ? 0 : (area[0] + area[1]) / 2e6;
+		double latPerPixel = lonPerPixel * Math.cos(Math.toRadians(middle));
+		double cellLon = CLUSTER_CELL_PIXELS * lonPerPixel;
+		double cellLat = CLUSTER_CELL_PIXELS * latPerPixel;
+
+		Map<Long, List<PointOfInterest>> cells = new HashMap<Long, List<PointOfInterest>>();
+		for (int i = 0; i < latitudes.length; i++) {
+			double lat = latitudes[i];
+			double lon = longitudes[i];
+			if (area != null && (lat * 1e6 > area[0] || lat * 1e6 < area[1] || lon * 1e6 > area[2]
+					|| lon * 1e6 < area[3])) {
+				continue;
+			}
+			long row = (long) Math.floor(lat / cellLat);
+			long column = (long) Math.floor(lon / cellLon);
+			Long cell = (row << 32) ^ (column & 0xffffffffL);
+			List<PointOfInterest> members = cells.get(cell);
+			if (members == null) {
+				members = new ArrayList<PointOfInterest>(1);
+				cells.put(cell, members);
+			}
+			members.add(pois.get(i));
+		}
+		return cells;
+	}
+
+	/**
+	 * Bring the overlay's markers in line with the given cells, only adding and removing the
+	 * markers which changed.
+	 *
+	 * @return true if any marker was added or removed.
+	 */
+	private boolean update(Map<Long, List<PointOfInterest>> cells) {
+		Map<String, List<PointOfInterest>> wanted = new HashMap<String, List<PointOfInterest>>();
+		for (List<PointOfInterest> members : cells.values()) {
+			wanted.put(getKey(members), members);
+		}
+
+		boolean changed = false;
+		Iterator<Map.Entry<String, Marker>> it = markers.entrySet().iterator();
+		while (it.hasNext()) {
+			Map.Entry<String, Marker> entry = it.next();
+			if (!wanted.containsKey(entry.getKey())) {
+				overlay.removeItem(entry.getValue().item);
+				markersByItem.remove(entry.getValue().item);
+				it.remove();
+				changed = true;
+			}
+		}
+
+		for (Map.Entry<String, List<PointOfInterest>> entry : wanted.entrySet()) {
+			if (!markers.containsKey(entry.getKey())) {
+				Marker marker = new Marker(createItem(entry.getValue()), entry.getValue());
+				overlay.addItem(marker.item);
+				markers.put(entry.getKey(), marker);
+				markersByItem.put(marker.item, marker);
+				changed = true;
+			}
+		}
+		return changed;
+	}
+
+	/**
+	 * Get a key which identifies the marker for a group of POI's: the POI's id for a single POI,
+	 * or the ids of all the members for a cluster.
+	 */
+	private static String getKey(List<PointOfInterest> members) {
+		if (members.size() == 1) {
+			return members.get(0).getId();
+		}
+		StringBuilder key = new StringBuilder("cluster");
+		for (PointOfInterest poi : members) {
+			key.append(',').append(poi.getId());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Create the overlay item for a single POI, or for a cluster at the centroid of its members.
+	 */
+	private static OverlayItem createItem(List<PointOfInterest> members) {
+		if (members.size() == 1) {
+			PointOfInterest poi = members.get(0);
+			GeoPoint gp = new GeoPoint(poi.getLatLong().getLatitude(), poi.getLatLong().getLongitude());
+			return new OverlayItem(poi.getDisplayName(), poi.getDescription(), gp);
+		}
+
+		double latitude = 0;
+		double longitude = 0;
+		StringBuilder names = new StringBuilder();
+		for (PointOfInterest poi : members) {
+			latitude += poi.getLatLong().getLatitude();
+			longitude += poi.getLatLong().getLongitude();
+			if (names.length() > 0) {
+				names.append("\n");
+			}
+			names.append(poi.getDisplayName());
+		}
+		GeoPoint gp = new GeoPoint(latitude / members.size(), longitude / members.size());
+		return new OverlayItem(members.size() + " points of interest", names.toString(), gp);
+	}
+
+	/**
+	 * Get a viewport as {north, south, east, west} in microdegrees, or null if there is no
+	 * viewport or it is empty (as before the map has been laid out).
+	 */
+	private static int[] getArea(BoundingBoxE6 viewport) {
+		if (viewport == null || viewport.getLatNorthE6() <= viewport.getLatSouthE6()) {
+			return null;
+		}
+		return new int[] { viewport.getLatNorthE6(), viewport.getLatSouthE6(),
+				viewport.getLonEastE6(), viewport.getLonWestE6() };
+	}
+
+	private static int[] pad(int[] area) {
+		if (area == null) {
+			return null;
+		}
+		int latPadding = (int) ((area[0] - area[1]) * VIEWPORT_PADDING);
+		int lonPadding = (int) ((area[2] - area[3]) * VIEWPORT_PADDING);
+		return new int[] { area[0] + latPadding, area[1] - latPadding, area[2] + lonPadding,
+				area[3] - lonPadding };
+	}
+
+	/**
+	 * Indicates whether area a contains area b. A null area is the whole map.
+	 */
+	private static boolean contains(int[] a, int[] b) {
+		if (a == null) {
+			return true;
+		}
+		if (b == null) {
+			return false;
+		}
+		return b[0] <= a[0] && b[1] >= a[1] && b[2] <= a[2] && b[3] >= a[3];
+	}
+}
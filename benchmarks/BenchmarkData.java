@@ -0,0 +1,108 @@
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Synthetic data shared by the benchmarks. All data is generated from a fixed seed, so that every
+ * run of a benchmark measures the same work.
+ */
+public class BenchmarkData {
+	/**
+	 * Directory holding the captured routing service responses.
+	 */
+	public final static String FIXTURE_DIR = "benchmarks/fixtures/";
+
+	/**
+	 * Centre and extent (in degrees) of the area in which synthetic POIs are placed, around the UBC
+	 * Point Grey campus.
+	 */
+	private final static double CENTRE_LATITUDE = 49.2645;
+	private final static double CENTRE_LONGITUDE = -123.2520;
+	private final static double EXTENT = 0.02;
+
+	private final static long SEED = 210;
+
+	private BenchmarkData() {
+	}
+
+	/**
+	 * Create a registry of points of interest spread uniformly over the campus, each with one to
+	 * three features.
+	 */
+	public static POIRegistry createRegistry(int size) {
+		Random random = new Random(SEED);
+		Feature[] features = Feature.values();
+		POIRegistry registry = new POIRegistry();
+
+		for (int i = 0; i < size; i++) {
+			PointOfInterest poi = new PointOfInterest("POI" + i, "Point of Interest " + randomName(random));
+			poi.setLatLong(randomLatLong(random));
+			poi.setAddress(i + " Main Mall, Vancouver, BC");
+			poi.setDescription("Synthetic point of interest number " + i);
+
+			List<Feature> poiFeatures = new ArrayList<Feature>();
+			int count = 1 + random.nextInt(3);
+			while (poiFeatures.size() < count) {
+				Feature f = features[random.nextInt(features.length)];
+				if (!poiFeatures.contains(f)) {
+					poiFeatures.add(f);
+				}
+			}
+			poi.setFeatures(poiFeatures);
+			registry.add(poi);
+		}
+		return registry;
+	}
+
+	/**
+	 * Choose every n-th point of interest of a registry, in walking tour order.
+	 */
+	public static List<PointOfInterest> selectEvery(POIRegistry registry, int n) {
+		List<PointOfInterest> result = new ArrayList<PointOfInterest>();
+		int i = 0;
+		for (PointOfInterest poi : registry.getPointsByLocation()) {
+			if (i++ % n == 0) {
+				result.add(poi);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Create random locations on the campus.
+	 */
+	public static LatLong[] createLocations(int count) {
+		Random random = new Random(SEED + 1);
+		LatLong[] result = new LatLong[count];
+		for (int i = 0; i < count; i++) {
+			result[i] = randomLatLong(random);
+		}
+		return result;
+	}
+
+	/**
+	 * Read a captured routing service response.
+	 */
+	public static String readFixture(String name) throws IOException {
+		byte[] bytes = Files.readAllBytes(Paths.get(FIXTURE_DIR + name));
+		return new String(bytes, Charset.forName("UTF-8"));
+	}
+
+	private static LatLong randomLatLong(Random random) {
+		return new LatLong(CENTRE_LATITUDE + (random.nextDouble() - 0.5) * EXTENT,
+				CENTRE_LONGITUDE + (random.nextDouble() - 0.5) * EXTENT);
+	}
+
+	private static String randomName(Random random) {
+		char[] name = new char[8];
+		name[0] = (char) ('A' + random.nextInt(26));
+		for (int i = 1; i < name.length; i++) {
+			name[i] = (char) ('a' + random.nextInt(26));
+		}
+		return new String(name);
+	}
+}
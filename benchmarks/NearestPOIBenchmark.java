@@ -0,0 +1,103 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmark for finding the selected point of interest nearest to the user, as done on every
+ * location update by MapDisplayFragment.findClosestPOI (which needs an Android Location, so its
+ * search is reproduced here over LatLong). The search is measured with each distance kernel, and
+ * with the flat-earth loop the fragment used before the kernels were added.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class NearestPOIBenchmark {
+	@Param({ "10", "1000", "100000" })
+	public int size;
+
+	private List<PointOfInterest> pois;
+	private GeoPoints points;
+	private double[] distances;
+	private LatLong[] fixes;
+	private int next;
+
+	private DistanceKernel equirectangular;
+	private DistanceKernel haversine = new HaversineKernel();
+	private DistanceKernel vincenty = new VincentyKernel();
+
+	@Setup
+	public void setUp() {
+		pois = BenchmarkData.createRegistry(size).getPointsByLocation();
+		fixes = BenchmarkData.createLocations(64);
+
+		List<LatLong> latLongs = new ArrayList<LatLong>();
+		for (PointOfInterest poi : pois) {
+			latLongs.add(poi.getLatLong());
+		}
+		points = new GeoPoints(latLongs);
+		distances = new double[points.size()];
+		equirectangular = new EquirectangularKernel(latLongs.get(0).getLatitude());
+	}
+
+	private LatLong nextFix() {
+		next = (next + 1) % fixes.length;
+		return fixes[next];
+	}
+
+	@Benchmark
+	public PointOfInterest findClosestPOI() {
+		LatLong fix = nextFix();
+		return pois.get(haversine.nearest(fix.getLatitude(), fix.getLongitude(), points));
+	}
+
+	@Benchmark
+	public PointOfInterest findClosestPOIEquirectangular() {
+		LatLong fix = nextFix();
+		return pois.get(equirectangular.nearest(fix.getLatitude(), fix.getLongitude(), points));
+	}
+
+	@Benchmark
+	public PointOfInterest findClosestPOIVincenty() {
+		LatLong fix = nextFix();
+		return pois.get(vincenty.nearest(fix.getLatitude(), fix.getLongitude(), points));
+	}
+
+	@Benchmark
+	public double[] distancesHaversine() {
+		LatLong fix = nextFix();
+		haversine.distances(fix.getLatitude(), fix.getLongitude(), points, distances);
+		return distances;
+	}
+
+	@Benchmark
+	public PointOfInterest findClosestPOIFlatEarth() {
+		next = (next + 1) % fixes.length;
+		LatLong fix = fixes[next];
+		double approxLatitude = pois.get(0).getLatLong().getLatitude();
+
+		PointOfInterest closest = null;
+		double minDistValue = Double.MAX_VALUE;
+		LatLong locationLatLong = new LatLong(fix.getLatitude(), fix.getLongitude());
+
+		for (PointOfInterest poi : pois) {
+			double latAdjust = Math.cos(Math.PI * approxLatitude / 180.0);
+			double latDiff = locationLatLong.getLatitude() - poi.getLatLong().getLatitude();
+			double longDiff = locationLatLong.getLongitude() - poi.getLatLong().getLongitude();
+			double distValue = Math.pow(latDiff, 2) + Math.pow(latAdjust * longDiff, 2);
+			if (distValue < minDistValue) {
+				minDistValue = distValue;
+				closest = poi;
+			}
+		}
+		return closest;
+	}
+}
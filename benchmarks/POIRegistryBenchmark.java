@@ -0,0 +1,81 @@
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for the queries made on POIRegistry when building the list screens and tours.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class POIRegistryBenchmark {
+	@Param({ "10", "1000", "100000" })
+	public int size;
+
+	private POIRegistry registry;
+
+	/**
+	 * Ids to look up, cycled through so that lookups are spread over the registry.
+	 */
+	private String[] ids;
+	private int next;
+
+	@Setup
+	public void setUp() {
+		registry = BenchmarkData.createRegistry(size);
+		ids = new String[Math.min(size, 64)];
+		for (int i = 0; i < ids.length; i++) {
+			ids[i] = "POI" + (int) ((long) i * size / ids.length);
+		}
+	}
+
+	@Benchmark
+	public PointOfInterest lookupPoint() {
+		next = (next + 1) % ids.length;
+		return registry.lookupPoint(ids[next]);
+	}
+
+	@Benchmark
+	public List<PointOfInterest> getPointsWithFeature() {
+		return registry.getPointsWithFeature(Feature.SOLAR_ENERGY);
+	}
+
+	/**
+	 * The features list's query: the POIs with any of two features, with facet counts for every
+	 * feature.
+	 */
+	@Benchmark
+	public FeatureIndex.Result queryFeatures() {
+		return registry.query(FeatureQuery.anyOf(Arrays.asList(Feature.SOLAR_ENERGY, Feature.BIOFUEL)));
+	}
+
+	/**
+	 * A search as typed, with the last word incomplete.
+	 */
+	@Benchmark
+	public List<PointOfInterest> searchPrefix() {
+		return registry.search("point of int", 20);
+	}
+
+	/**
+	 * A search for a mistyped word, which must walk the trie for words within two typos.
+	 */
+	@Benchmark
+	public List<PointOfInterest> searchTypo() {
+		return registry.search("intrest synthetc", 20);
+	}
+
+	@Benchmark
+	public List<PointOfInterest> getPointsAlphabetical() {
+		return registry.getPointsAlphabetical();
+	}
+}
@@ -0,0 +1,77 @@
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Benchmarks for RoutingService. The upstream service is replaced by a captured response, so the
+ * cache hit and miss paths measure only the work done in the app (cache lookup, parsing, encoding
+ * and decoding), and parsing is measured on its own.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RoutingServiceBenchmark {
+	@Param({ "law-to-ck-choi.geojson", "campus-loop.geojson" })
+	public String fixture;
+
+	private String response;
+	private RoutingService service;
+	private LatLong[] locations;
+	private int next;
+
+	/**
+	 * Routing service which answers every request with the same captured response.
+	 */
+	private class FixtureRoutingService extends RoutingService {
+		@Override
+		protected RouteInfo getRouteFromService(RouteEndpoints endpoints) throws IOException {
+			try {
+				return parseRoute(response);
+			} catch (JSONException e) {
+				throw new IOException(e.getMessage());
+			}
+		}
+	}
+
+	@Setup
+	public void setUp() throws IOException {
+		response = BenchmarkData.readFixture(fixture);
+		service = new FixtureRoutingService();
+		locations = BenchmarkData.createLocations(64);
+		for (int i = 1; i < locations.length; i++) {
+			service.getRoute(locations[i - 1], locations[i], true);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		service.shutdown();
+	}
+
+	@Benchmark
+	public int cacheHit() throws IOException {
+		next = next % (locations.length - 1) + 1;
+		return service.getRoute(locations[next - 1], locations[next], true).getWaypoints().size();
+	}
+
+	@Benchmark
+	public int cacheMiss() throws IOException {
+		next = next % (locations.length - 1) + 1;
+		return service.getRoute(locations[next - 1], locations[next], false).getWaypoints().size();
+	}
+
+	@Benchmark
+	public RouteInfo parseRoute() throws JSONException {
+		return RoutingService.parseRoute(response);
+	}
+}
@@ -0,0 +1,57 @@
+import java.util.BitSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Benchmarks for storing and restoring the selected points of interest, over an in-memory store so
+ * that only the work done by TourState and POIRegistry is measured.
+ * 
+ * A tenth of the registry is selected. Both operations are quadratic in the current
+ * implementation, so the largest sizes take seconds per operation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class TourStateBenchmark {
+	@Param({ "10", "1000", "10000", "100000" })
+	public int size;
+
+	private TourState tourState;
+	private List<PointOfInterest> selection;
+
+	@Setup
+	public void setUp() {
+		POIRegistry registry = BenchmarkData.createRegistry(size);
+		tourState = new TourState(registry, new MemoryKeyValueStore());
+		selection = BenchmarkData.selectEvery(registry, 10);
+		tourState.setSelectedPOIs(selection);
+	}
+
+	@Benchmark
+	public void setSelectedPOIs() {
+		tourState.setSelectedPOIs(selection);
+	}
+
+	@Benchmark
+	public List<PointOfInterest> getSelectedPOIs() {
+		return tourState.getSelectedPOIs();
+	}
+
+	/**
+	 * The selection bits when the version is unchanged, as read by a list screen which resumes
+	 * after the selection was changed elsewhere.
+	 */
+	@Benchmark
+	public BitSet getSelectedPOIBits() {
+		return tourState.getSelectedPOIBits();
+	}
+}
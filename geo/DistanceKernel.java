@@ -0,0 +1,73 @@
+/**
+ * Computes distances over the surface of the earth. Each kernel offers a single distance between
+ * two points, and batch methods which work on the primitive arrays of a {@link GeoPoints} without
+ * allocating. Kernels are immutable and thread-safe.
+ * 
+ * Three kernels are provided, from fastest to most accurate: {@link EquirectangularKernel} (a flat
+ * earth around a reference latitude, good to a fraction of a percent over a few kilometres),
+ * {@link HaversineKernel} (a spherical earth, good to about 0.5%) and {@link VincentyKernel} (the
+ * WGS-84 ellipsoid, good to a millimetre).
+ */
+public abstract class DistanceKernel {
+	/**
+	 * Mean radius of the earth in metres.
+	 */
+	public final static double EARTH_RADIUS = 6371008.8;
+
+	/**
+	 * Length in metres of one degree of latitude, or of longitude on the equator, on a sphere of
+	 * the mean radius.
+	 */
+	public final static double METRES_PER_DEGREE = EARTH_RADIUS * Math.PI / 180;
+
+	/**
+	 * Get the distance between two points.
+	 * 
+	 * @return The distance in metres.
+	 */
+	public abstract double distance(double lat1, double lon1, double lat2, double lon2);
+
+	public double distance(LatLong a, LatLong b) {
+		return distance(a.getLatitude(), a.getLongitude(), b.getLatitude(), b.getLongitude());
+	}
+
+	/**
+	 * Get the distance from a point to every point of a set.
+	 * 
+	 * @param lat
+	 *            Latitude of the point, in degrees.
+	 * @param lon
+	 *            Longitude of the point, in degrees.
+	 * @param points
+	 *            The set of points.
+	 * @param out
+	 *            Receives the distance in metres to each point of the set. Must be at least as
+	 *            long as the set.
+	 */
+	public abstract void distances(double lat, double lon, GeoPoints points, double[] out);
+
+	/**
+	 * Find the point of a set nearest to a point.
+	 * 
+	 * @param lat
+	 *            Latitude of the point, in degrees.
+	 * @param lon
+	 *            Longitude of the point, in degrees.
+	 * @return Index of the nearest point of the set, or -1 if the set is empty.
+	 */
+	public abstract int nearest(double lat, double lon, GeoPoints points);
+
+	/**
+	 * Get the length of the path through the points of a set, in order.
+	 * 
+	 * @return The length in metres.
+	 */
+	public double pathLength(GeoPoints points) {
+		double length = 0;
+		for (int i = 1; i < points.size; i++) {
+			length += distance(Math.toDegrees(points.lat[i - 1]), Math.toDegrees(points.lon[i - 1]),
+					Math.toDegrees(points.lat[i]), Math.toDegrees(points.lon[i]));
+		}
+		return length;
+	}
+}
@@ -0,0 +1,73 @@
+import java.util.List;
+
+/**
+ * An immutable set of points held in primitive arrays, for use with the batch methods of
+ * {@link DistanceKernel}. The trigonometric values that the kernels need for each point are
+ * computed once, when the set is created, so that a search over the points allocates nothing and
+ * computes only what depends on the query point. The arrays are laid out so that the loops over
+ * them can be compiled to vector instructions.
+ */
+public class GeoPoints {
+	final int size;
+
+	/**
+	 * Latitude and longitude of each point, in radians.
+	 */
+	final double[] lat;
+	final double[] lon;
+
+	/**
+	 * Cosine of the latitude of each point.
+	 */
+	final double[] cosLat;
+
+	/**
+	 * Sine and cosine of the reduced latitude of each point on the WGS-84 ellipsoid.
+	 */
+	final double[] sinU;
+	final double[] cosU;
+
+	/**
+	 * Create a set of points.
+	 * 
+	 * @param points
+	 *            The points, in the order in which they are indexed.
+	 */
+	public GeoPoints(List<LatLong> points) {
+		size = points.size();
+		lat = new double[size];
+		lon = new double[size];
+		cosLat = new double[size];
+		sinU = new double[size];
+		cosU = new double[size];
+
+		int i = 0;
+		for (LatLong ll : points) {
+			lat[i] = Math.toRadians(ll.getLatitude());
+			lon[i] = Math.toRadians(ll.getLongitude());
+			cosLat[i] = Math.cos(lat[i]);
+			double u = VincentyKernel.reducedLatitude(lat[i]);
+			sinU[i] = Math.sin(u);
+			cosU[i] = Math.cos(u);
+			i++;
+		}
+	}
+
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the latitude of a point, in degrees.
+	 */
+	public double getLatitude(int index) {
+		return Math.toDegrees(lat[index]);
+	}
+
+	/**
+	 * Get the longitude of a point, in degrees.
+	 */
+	public double getLongitude(int index) {
+		return Math.toDegrees(lon[index]);
+	}
+}
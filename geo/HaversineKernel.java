@@ -0,0 +1,67 @@
+/**
+ * Great-circle distance on a spherical earth, by the haversine formula. The cosine of each point's
+ * latitude is taken from the GeoPoints, so a batch computes one cosine per query rather than two
+ * per point, and ranking by distance compares the haversine of the central angle rather than the
+ * angle itself.
+ */
+public class HaversineKernel extends DistanceKernel {
+	@Override
+	public double distance(double lat1, double lon1, double lat2, double lon2) {
+		double phi1 = Math.toRadians(lat1);
+		double phi2 = Math.toRadians(lat2);
+		return centralAngle(haversine(phi1, Math.cos(phi1), Math.toRadians(lon1), phi2,
+				Math.cos(phi2), Math.toRadians(lon2))) * EARTH_RADIUS;
+	}
+
+	@Override
+	public void distances(double lat, double lon, GeoPoints points, double[] out) {
+		double phi = Math.toRadians(lat);
+		double cosPhi = Math.cos(phi);
+		double lambda = Math.toRadians(lon);
+		for (int i = 0; i < points.size; i++) {
+			out[i] = centralAngle(haversine(phi, cosPhi, lambda, points.lat[i], points.cosLat[i],
+					points.lon[i])) * EARTH_RADIUS;
+		}
+	}
+
+	@Override
+	public int nearest(double lat, double lon, GeoPoints points) {
+		double phi = Math.toRadians(lat);
+		double cosPhi = Math.cos(phi);
+		double lambda = Math.toRadians(lon);
+		int best = -1;
+		double bestValue = Double.MAX_VALUE;
+		for (int i = 0; i < points.size; i++) {
+			double value = haversine(phi, cosPhi, lambda, points.lat[i], points.cosLat[i], points.lon[i]);
+			if (value < bestValue) {
+				bestValue = value;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public double pathLength(GeoPoints points) {
+		double length = 0;
+		for (int i = 1; i < points.size; i++) {
+			length += centralAngle(haversine(points.lat[i - 1], points.cosLat[i - 1], points.lon[i - 1],
+					points.lat[i], points.cosLat[i], points.lon[i]));
+		}
+		return length * EARTH_RADIUS;
+	}
+
+	/**
+	 * The haversine of the central angle between two points, given in radians.
+	 */
+	private static double haversine(double phi1, double cosPhi1, double lambda1, double phi2,
+			double cosPhi2, double lambda2) {
+		double sinHalfDPhi = Math.sin((phi2 - phi1) / 2);
+		double sinHalfDLambda = Math.sin((lambda2 - lambda1) / 2);
+		return sinHalfDPhi * sinHalfDPhi + cosPhi1 * cosPhi2 * sinHalfDLambda * sinHalfDLambda;
+	}
+
+	private static double centralAngle(double haversine) {
+		return 2 * Math.asin(Math.sqrt(Math.min(1, haversine)));
+	}
+}
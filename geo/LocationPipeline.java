@@ -0,0 +1,216 @@
+/**
+ * Filters the stream of location fixes from the location provider before they are used to find
+ * the nearest POI and request routes. Fixes pass through three stages:
+ *
+ * <ol>
+ * <li>Fixes much less accurate than the current estimate are dropped.</li>
+ * <li>The remaining fixes are smoothed with a one-dimensional Kalman filter, weighting each fix by
+ * its reported accuracy and letting the estimate drift at the user's speed between fixes.</li>
+ * <li>A smoothed location is only passed on once it has moved a minimum distance from the last
+ * location passed on, and no sooner than the time it takes to walk that distance at the current
+ * speed. A fix which moves far enough but arrives too soon is held, and replaced by any later fix,
+ * until {@link #flush(long)} is called after {@link #getPendingDelay(long)}; a burst of fixes
+ * therefore results in a single update.</li>
+ * </ol>
+ *
+ * The pipeline also suggests how often the location provider needs to be asked for fixes, from
+ * the user's speed. This class is not thread-safe; it is meant to be driven from the UI thread.
+ */
+public class LocationPipeline {
+	/**
+	 * Receives the locations passed on by a pipeline.
+	 */
+	public interface Listener {
+		/**
+		 * Called with a smoothed location.
+		 *
+		 * @param latitude
+		 *            Latitude in degrees.
+		 * @param longitude
+		 *            Longitude in degrees.
+		 * @param accuracy
+		 *            Estimated accuracy of the location in metres.
+		 */
+		void onLocation(double latitude, double longitude, float accuracy);
+	}
+
+	/**
+	 * Smoothed locations closer than this many metres to the last location passed on are not
+	 * passed on.
+	 */
+	private final static double MIN_DISTANCE = 10.0;
+
+	/**
+	 * Bounds in milliseconds of the interval between locations passed on.
+	 */
+	private final static long MIN_INTERVAL = 1000;
+	private final static long MAX_INTERVAL = 30000;
+
+	/**
+	 * Lower bound in metres per second on how fast the estimate may drift between fixes. It is
+	 * well above walking speed, so that the estimate keeps up with a walking user rather than
+	 * lagging behind.
+	 */
+	private final static double MIN_DRIFT_SPEED = 4.5;
+
+	/**
+	 * A fix is dropped if its accuracy is worse than the estimate's by this factor.
+	 */
+	private final static double OUTLIER_FACTOR = 4.0;
+
+	/**
+	 * Accuracy in metres assumed for a fix which does not report one, about that of a fix from
+	 * the network rather than GPS. A fix of unknown accuracy must not be trusted as a precise one.
+	 */
+	private final static double UNKNOWN_ACCURACY = 50.0;
+
+	/**
+	 * Speeds in metres per second below which the user is considered to be standing still, and
+	 * above which they are considered to be faster than walking.
+	 */
+	private final static double STATIONARY_SPEED = 0.3;
+	private final static double WALKING_SPEED = 2.5;
+
+	private Listener listener;
+	private DistanceKernel kernel;
+
+	/**
+	 * Current estimate, with its variance in square metres (negative if there is no estimate yet),
+	 * the time of the last fix and the last speed reported.
+	 */
+	private double latitude;
+	private double longitude;
+	private double variance = -1;
+	private long lastFixTime;
+	private double speed;
+
+	/**
+	 * The last location passed on and when, or NaN if none has been.
+	 */
+	private double sentLatitude = Double.NaN;
+	private double sentLongitude = Double.NaN;
+	private long sentTime;
+
+	/**
+	 * Indicates whether the estimate has moved far enough to be passed on, but was held back by
+	 * the rate limit.
+	 */
+	private boolean pending;
+
+	public LocationPipeline(Listener listener) {
+		this.listener = listener;
+	}
+
+	/**
+	 * Submit a fix from the location provider.
+	 *
+	 * @param latitude
+	 *            Latitude in degrees.
+	 * @param longitude
+	 *            Longitude in degrees.
+	 * @param accuracy
+	 *            Accuracy in metres, or 0 if unknown, in which case the fix is weighted as a
+	 *            poor one.
+	 * @param speed
+	 *            Speed in metres per second, or a negative value if unknown.
+	 * @param time
+	 *            Current time in milliseconds.
+	 * @return true if a location was passed on to the listener.
+	 */
+	public boolean submit(double latitude, double longitude, float accuracy, float speed, long time) {
+		double metres = accuracy > 0 ? Math.max(accuracy, 1.0) : UNKNOWN_ACCURACY;
+		double accuracySquared = metres * metres;
+		this.speed = speed;
+
+		if (variance < 0) {
+			this.latitude = latitude;
+			this.longitude = longitude;
+			variance = accuracySquared;
+			kernel = new EquirectangularKernel(latitude);
+		} else {
+			// the user may have moved since the last fix
+			double drift = Math.max(speed, MIN_DRIFT_SPEED);
+			double seconds = Math.max(0, time - lastFixTime) / 1000.0;
+			variance += seconds * drift * drift;
+			if (accuracySquared > variance * OUTLIER_FACTOR * OUTLIER_FACTOR) {
+				lastFixTime = time;
+				return false;
+			}
+			double gain = variance / (variance + accuracySquared);
+			this.latitude += gain * (latitude - this.latitude);
+			this.longitude += gain * (longitude - this.longitude);
+			variance = (1 - gain) * variance;
+		}
+		lastFixTime = time;
+
+		if (!Double.isNaN(sentLatitude)
+				&& kernel.distance(sentLatitude, sentLongitude, this.latitude, this.longitude) < MIN_DISTANCE) {
+			pending = false;
+			return false;
+		}
+		pending = true;
+		return flush(time);
+	}
+
+	/**
+	 * Get the time until a held location may be passed on.
+	 *
+	 * @param time
+	 *            Current time in milliseconds.
+	 * @return The delay in milliseconds, or -1 if no location is held.
+	 */
+	public long getPendingDelay(long time) {
+		if (!pending) {
+			return -1;
+		}
+		return Math.max(0, sentTime + getMinInterval() - time);
+	}
+
+	/**
+	 * Pass on the held location, if there is one and the rate limit allows.
+	 *
+	 * @param time
+	 *            Current time in milliseconds.
+	 * @return true if a location was passed on to the listener.
+	 */
+	public boolean flush(long time) {
+		if (!pending || (!Double.isNaN(sentLatitude) && time - sentTime < getMinInterval())) {
+			return false;
+		}
+		pending = false;
+		sentLatitude = latitude;
+		sentLongitude = longitude;
+		sentTime = time;
+		listener.onLocation(latitude, longitude, (float) Math.sqrt(variance));
+		return true;
+	}
+
+	/**
+	 * Get the minimum interval between fixes that the location provider should be asked for,
+	 * from the user's speed: long while they stand still, short when they move faster than a
+	 * walk.
+	 *
+	 * @return The interval in milliseconds.
+	 */
+	public long getSuggestedInterval() {
+		if (speed < 0) {
+			return MIN_INTERVAL * 10;
+		} else if (speed < STATIONARY_SPEED) {
+			return MAX_INTERVAL;
+		} else if (speed > WALKING_SPEED) {
+			return MIN_INTERVAL * 5;
+		}
+		return MIN_INTERVAL * 10;
+	}
+
+	/**
+	 * Get the time it takes to cover the minimum distance at the current speed, within bounds.
+	 */
+	private long getMinInterval() {
+		if (speed <= 0) {
+			return MIN_INTERVAL * 5;
+		}
+		long interval = (long) (MIN_DISTANCE / speed * 1000);
+		return Math.max(MIN_INTERVAL, Math.min(MAX_INTERVAL, interval));
+	}
+}
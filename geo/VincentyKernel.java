@@ -0,0 +1,120 @@
+/**
+ * Distance on the WGS-84 ellipsoid, by Vincenty's inverse formula (<a
+ * href="https://en.wikipedia.org/wiki/Vincenty%27s_formulae"
+ * >https://en.wikipedia.org/wiki/Vincenty%27s_formulae</a>). The sine and cosine of each point's
+ * reduced latitude are taken from the GeoPoints, so a batch only iterates on the longitude.
+ * 
+ * The iteration converges in a few steps for any two points on a campus or in a city. For nearly
+ * antipodal points it may not converge, in which case the distance after the last iteration is
+ * returned.
+ */
+public class VincentyKernel extends DistanceKernel {
+	/**
+	 * Semi-major axis and flattening of the WGS-84 ellipsoid, and the derived semi-minor axis.
+	 */
+	private final static double A = 6378137.0;
+	private final static double F = 1 / 298.257223563;
+	private final static double B = A * (1 - F);
+
+	private final static int MAX_ITERATIONS = 100;
+	private final static double CONVERGENCE = 1e-12;
+
+	/**
+	 * Get the reduced latitude of a latitude, both in radians.
+	 */
+	static double reducedLatitude(double phi) {
+		return Math.atan((1 - F) * Math.tan(phi));
+	}
+
+	@Override
+	public double distance(double lat1, double lon1, double lat2, double lon2) {
+		double u1 = reducedLatitude(Math.toRadians(lat1));
+		double u2 = reducedLatitude(Math.toRadians(lat2));
+		return inverse(Math.sin(u1), Math.cos(u1), Math.sin(u2), Math.cos(u2),
+				Math.toRadians(lon2 - lon1));
+	}
+
+	@Override
+	public void distances(double lat, double lon, GeoPoints points, double[] out) {
+		double u = reducedLatitude(Math.toRadians(lat));
+		double sinU = Math.sin(u);
+		double cosU = Math.cos(u);
+		double lambda = Math.toRadians(lon);
+		for (int i = 0; i < points.size; i++) {
+			out[i] = inverse(sinU, cosU, points.sinU[i], points.cosU[i], points.lon[i] - lambda);
+		}
+	}
+
+	@Override
+	public int nearest(double lat, double lon, GeoPoints points) {
+		double u = reducedLatitude(Math.toRadians(lat));
+		double sinU = Math.sin(u);
+		double cosU = Math.cos(u);
+		double lambda = Math.toRadians(lon);
+		int best = -1;
+		double bestValue = Double.MAX_VALUE;
+		for (int i = 0; i < points.size; i++) {
+			double value = inverse(sinU, cosU, points.sinU[i], points.cosU[i], points.lon[i] - lambda);
+			if (value < bestValue) {
+				bestValue = value;
+				best = i;
+			}
+		}
+		return best;
+	}
+
+	@Override
+	public double pathLength(GeoPoints points) {
+		double length = 0;
+		for (int i = 1; i < points.size; i++) {
+			length += inverse(points.sinU[i - 1], points.cosU[i - 1], points.sinU[i], points.cosU[i],
+					points.lon[i] - points.lon[i - 1]);
+		}
+		return length;
+	}
+
+	/**
+	 * Solve the inverse problem between two points given by the sine and cosine of their reduced
+	 * latitudes and the difference in their longitudes (in radians).
+	 * 
+	 * @return The distance in metres.
+	 */
+	private static double inverse(double sinU1, double cosU1, double sinU2, double cosU2, double l) {
+		double lambda = l;
+		double sinSigma, cosSigma, sigma, cos2Alpha, cos2SigmaM;
+		int iterations = 0;
+		while (true) {
+			double sinLambda = Math.sin(lambda);
+			double cosLambda = Math.cos(lambda);
+			double t1 = cosU2 * sinLambda;
+			double t2 = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+			sinSigma = Math.sqrt(t1 * t1 + t2 * t2);
+			if (sinSigma == 0) {
+				// coincident points
+				return 0;
+			}
+			cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+			sigma = Math.atan2(sinSigma, cosSigma);
+			double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+			cos2Alpha = 1 - sinAlpha * sinAlpha;
+			// on the equator cos2Alpha is 0, and the term is not used
+			cos2SigmaM = cos2Alpha == 0 ? 0 : cosSigma - 2 * sinU1 * sinU2 / cos2Alpha;
+			double c = F / 16 * cos2Alpha * (4 + F * (4 - 3 * cos2Alpha));
+			double previous = lambda;
+			lambda = l + (1 - c) * F * sinAlpha
+					* (sigma + c * sinSigma * (cos2SigmaM + c * cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)));
+			if (Math.abs(lambda - previous) < CONVERGENCE || ++iterations >= MAX_ITERATIONS) {
+				break;
+			}
+		}
+
+		double uSquared = cos2Alpha * (A * A - B * B) / (B * B);
+		double k1 = (Math.sqrt(1 + uSquared) - 1) / (Math.sqrt(1 + uSquared) + 1);
+		double bigA = (1 + k1 * k1 / 4) / (1 - k1);
+		double bigB = k1 * (1 - 3 * k1 * k1 / 8);
+		double deltaSigma = bigB * sinSigma
+				* (cos2SigmaM + bigB / 4 * (cosSigma * (-1 + 2 * cos2SigmaM * cos2SigmaM)
+						- bigB / 6 * cos2SigmaM * (-3 + 4 * sinSigma * sinSigma) * (-3 + 4 * cos2SigmaM * cos2SigmaM)));
+		return B * bigA * (sigma - deltaSigma);
+	}
+}
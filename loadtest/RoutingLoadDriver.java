@@ -0,0 +1,206 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Load driver for RoutingService. Replays many walking tours concurrently: for each tour, the
+ * route of every leg is requested with getRoute, then directions to every stop with
+ * getDirections, as MapDisplayFragment does. Reports throughput and latency percentiles for each
+ * kind of call.
+ * 
+ * Usage: RoutingLoadDriver [base URL] [tours] [threads] [stops per tour] [use cache] [batch URL]
+ * 
+ * If a batch URL is given (or "stub" when the stub server is used), the legs of each tour are
+ * requested together with getRoutes, and each getRoute latency reported is that of a whole tour.
+ * 
+ * With no base URL (or "stub"), a StubRoutingServer with the campus profile is started in this
+ * process. The metrics collected by RoutingService are printed after the report. The
+ * connection pool is sized to the number of threads.
+ */
+public class RoutingLoadDriver {
+	/**
+	 * Centre and extent (in degrees) of the area in which stops are placed.
+	 */
+	private final static double CENTRE_LATITUDE = 49.2645;
+	private final static double CENTRE_LONGITUDE = -123.2520;
+	private final static double EXTENT = 0.02;
+
+	/**
+	 * Latencies of one kind of call, in nanoseconds.
+	 */
+	static class LatencyRecorder {
+		private long[] latencies = new long[1024];
+		private int count;
+		private int errors;
+
+		synchronized void record(long nanos) {
+			if (count == latencies.length) {
+				latencies = Arrays.copyOf(latencies, count * 2);
+			}
+			latencies[count++] = nanos;
+		}
+
+		synchronized void recordError() {
+			errors++;
+		}
+
+		synchronized String report(String name, double seconds) {
+			long[] sorted = Arrays.copyOf(latencies, count);
+			Arrays.sort(sorted);
+			return String.format("%-12s calls=%d errors=%d throughput=%.1f/s p50=%.1fms p99=%.1fms p999=%.1fms max=%.1fms",
+					name, count, errors, count / seconds, percentile(sorted, 0.50), percentile(sorted, 0.99),
+					percentile(sorted, 0.999), count == 0 ? 0 : sorted[count - 1] / 1e6);
+		}
+
+		/**
+		 * Nearest-rank percentile, in milliseconds.
+		 */
+		private static double percentile(long[] sorted, double p) {
+			if (sorted.length == 0) {
+				return 0;
+			}
+			int rank = (int) Math.ceil(p * sorted.length) - 1;
+			return sorted[Math.max(0, rank)] / 1e6;
+		}
+	}
+
+	private RoutingService service;
+	private boolean useCache;
+	private boolean batch;
+	private LatencyRecorder routes = new LatencyRecorder();
+	private LatencyRecorder directions = new LatencyRecorder();
+
+	public RoutingLoadDriver(RoutingService service, boolean useCache, boolean batch) {
+		this.service = service;
+		this.useCache = useCache;
+		this.batch = batch;
+	}
+
+	/**
+	 * Replay tours and print a report to standard output.
+	 * 
+	 * @param tours
+	 *            Number of tours to replay.
+	 * @param threads
+	 *            Number of tours replayed at the same time.
+	 * @param stopsPerTour
+	 *            Number of stops in each tour.
+	 */
+	public void run(int tours, int threads, final int stopsPerTour) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final AtomicInteger completed = new AtomicInteger();
+		final Random seeds = new Random(210);
+
+		long startTime = System.nanoTime();
+		for (int t = 0; t < tours; t++) {
+			final long seed = seeds.nextLong();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					replayTour(createTour(new Random(seed), stopsPerTour));
+					completed.incrementAndGet();
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		System.out.println(String.format("%d tours of %d stops in %.2fs using %d threads (%.1f tours/s)",
+				completed.get(), stopsPerTour, seconds, threads, completed.get() / seconds));
+		System.out.println(routes.report("getRoute", seconds));
+		System.out.println(directions.report("getDirections", seconds));
+	}
+
+	private void replayTour(List<LatLong> stops) {
+		if (batch) {
+			long start = System.nanoTime();
+			try {
+				service.getRoutes(stops, useCache);
+				routes.record(System.nanoTime() - start);
+			} catch (IOException e) {
+				routes.recordError();
+			}
+		}
+		for (int i = 1; i < stops.size() && !batch; i++) {
+			long start = System.nanoTime();
+			try {
+				if (service.getRoute(stops.get(i - 1), stops.get(i), useCache) != null) {
+					routes.record(System.nanoTime() - start);
+				} else {
+					routes.recordError();
+				}
+			} catch (IOException e) {
+				routes.recordError();
+			}
+		}
+		for (int i = 1; i < stops.size(); i++) {
+			long start = System.nanoTime();
+			try {
+				if (service.getDirections(stops.get(0), stops.get(i)) != null) {
+					directions.record(System.nanoTime() - start);
+				} else {
+					directions.recordError();
+				}
+			} catch (IOException e) {
+				directions.recordError();
+			}
+		}
+	}
+
+	/**
+	 * Create a tour of random stops on the campus, returning to the first stop.
+	 */
+	private static List<LatLong> createTour(Random random, int stops) {
+		List<LatLong> tour = new ArrayList<LatLong>();
+		for (int i = 0; i < stops; i++) {
+			tour.add(new LatLong(CENTRE_LATITUDE + (random.nextDouble() - 0.5) * EXTENT,
+					CENTRE_LONGITUDE + (random.nextDouble() - 0.5) * EXTENT));
+		}
+		tour.add(tour.get(0));
+		return tour;
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+		String baseUrl = args.length > 0 ? args[0] : "stub";
+		int tours = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 16;
+		int stops = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+		boolean useCache = args.length > 4 && Boolean.parseBoolean(args[4]);
+		String batchUrl = args.length > 5 ? args[5] : null;
+
+		StubRoutingServer stub = null;
+		if (baseUrl.equals("stub")) {
+			stub = new StubRoutingServer(0, StubRoutingServer.Profile.preset("campus"));
+			stub.start();
+			baseUrl = stub.getBaseUrl();
+			if ("stub".equals(batchUrl)) {
+				batchUrl = "http://localhost:" + stub.getPort();
+			}
+		}
+
+		RoutingTransportConfig transport = new RoutingTransportConfig();
+		transport.setMaxConnections(threads);
+		transport.setMaxConnectionsPerRoute(threads);
+		RoutingService service = new RoutingService(baseUrl, transport);
+		InMemoryMetricsReporter metrics = new InMemoryMetricsReporter();
+		service.setMetricsReporter(metrics);
+		service.setBatchBaseUrl(batchUrl);
+		try {
+			new RoutingLoadDriver(service, useCache, batchUrl != null).run(tours, threads, stops);
+			System.out.println();
+			System.out.print(metrics);
+		} finally {
+			service.shutdown();
+			if (stub != null) {
+				stub.stop();
+			}
+		}
+	}
+}
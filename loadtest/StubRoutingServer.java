@@ -0,0 +1,319 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPOutputStream;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Local stand-in for the YOURS routing server, for load testing RoutingService without calling
+ * the public service. Serves gosmore.php and gosmore-instructions.php in the geojson format
+ * returned by YOURS, and the OSRM route API (route/v1/foot) for batch requests, gzip compressed
+ * if the client asks for it. Routes are straight lines between the requested endpoints, with a small
+ * deterministic wiggle, split into as many waypoints as the profile asks for.
+ * 
+ * Usage: StubRoutingServer [port] [profile] [latency ms] [jitter ms] [error rate] [waypoints]
+ * 
+ * The profile sets the defaults for the remaining arguments; see {@link Profile}. Point a
+ * RoutingService at it with new RoutingService("http://localhost:port/yours"), and
+ * setBatchBaseUrl("http://localhost:port") to use batch requests.
+ */
+public class StubRoutingServer {
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Latency, error rate and payload size of the responses served.
+	 */
+	public static class Profile {
+		/**
+		 * Preset profiles: a fast backend, a backend like the campus server, a slow backend and an
+		 * unreliable one.
+		 */
+		private final static Map<String, Profile> PRESETS = new HashMap<String, Profile>();
+		static {
+			PRESETS.put("fast", new Profile(0, 0, 0, 50));
+			PRESETS.put("campus", new Profile(120, 60, 0.01, 200));
+			PRESETS.put("slow", new Profile(800, 400, 0.02, 600));
+			PRESETS.put("flaky", new Profile(200, 300, 0.2, 200));
+		}
+
+		/** Minimum delay before a response is sent, in milliseconds */
+		public long latency;
+		/** Maximum random delay added to latency, in milliseconds */
+		public long jitter;
+		/** Fraction of requests answered with HTTP 500 */
+		public double errorRate;
+		/** Number of waypoints in each route */
+		public int waypoints;
+
+		public Profile(long latency, long jitter, double errorRate, int waypoints) {
+			this.latency = latency;
+			this.jitter = jitter;
+			this.errorRate = errorRate;
+			this.waypoints = waypoints;
+		}
+
+		/**
+		 * Get a preset profile by name.
+		 * 
+		 * @throws IllegalArgumentException
+		 *             If there is no preset with the given name.
+		 */
+		public static Profile preset(String name) {
+			Profile p = PRESETS.get(name);
+			if (p == null) {
+				throw new IllegalArgumentException("No profile named \"" + name + "\", expected one of "
+						+ PRESETS.keySet());
+			}
+			return new Profile(p.latency, p.jitter, p.errorRate, p.waypoints);
+		}
+	}
+
+	private HttpServer server;
+	private ExecutorService executor = Executors.newCachedThreadPool();
+	private volatile Profile profile;
+	private Random random = new Random();
+
+	/**
+	 * Create a stub server.
+	 * 
+	 * @param port
+	 *            Port to listen on, or 0 for any free port.
+	 * @param profile
+	 *            Behaviour of the server. May be replaced while the server runs.
+	 */
+	public StubRoutingServer(int port, Profile profile) throws IOException {
+		this.profile = profile;
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/yours/api/1.0/gosmore.php", new RouteHandler(false));
+		server.createContext("/yours/gosmore-instructions.php", new RouteHandler(true));
+		server.createContext("/route/v1/foot/", new BatchRouteHandler());
+		// the handlers sleep to simulate latency, so give each request its own thread
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+		executor.shutdownNow();
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	/**
+	 * Base URL to give to RoutingService to use this server.
+	 */
+	public String getBaseUrl() {
+		return "http://localhost:" + getPort() + "/yours";
+	}
+
+	public void setProfile(Profile profile) {
+		this.profile = profile;
+	}
+
+	private class RouteHandler implements HttpHandler {
+		private boolean instructions;
+
+		RouteHandler(boolean instructions) {
+			this.instructions = instructions;
+		}
+
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			Profile p = profile;
+			try {
+				if (!delay(p)) {
+					send(exchange, 500, "Internal Server Error");
+					return;
+				}
+
+				Map<String, String> query = parseQuery(exchange.getRequestURI());
+				double flat = Double.parseDouble(query.get("flat"));
+				double flon = Double.parseDouble(query.get("flon"));
+				double tlat = Double.parseDouble(query.get("tlat"));
+				double tlon = Double.parseDouble(query.get("tlon"));
+				send(exchange, 200, createRoute(flat, flon, tlat, tlon, p.waypoints, instructions));
+			} catch (InterruptedException e) {
+				send(exchange, 503, "Service Unavailable");
+			} catch (RuntimeException e) {
+				send(exchange, 400, "Bad Request: " + e);
+			}
+		}
+	}
+
+	/**
+	 * Answers OSRM route requests, with one step per leg.
+	 */
+	private class BatchRouteHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			Profile p = profile;
+			try {
+				if (!delay(p)) {
+					send(exchange, 500, "{\"code\": \"Error\"}");
+					return;
+				}
+				String path = exchange.getRequestURI().getPath();
+				String[] stops = path.substring(path.lastIndexOf('/') + 1).split(";");
+				send(exchange, 200, createBatchRoute(stops, p.waypoints));
+			} catch (InterruptedException e) {
+				send(exchange, 503, "Service Unavailable");
+			} catch (RuntimeException e) {
+				send(exchange, 400, "{\"code\": \"InvalidQuery\", \"message\": \"" + e + "\"}");
+			}
+		}
+	}
+
+	/**
+	 * Sleep for the latency of a profile, and decide whether the request fails.
+	 * 
+	 * @return false if the request should fail.
+	 */
+	private boolean delay(Profile p) throws InterruptedException {
+		long delay = p.latency;
+		double failure;
+		synchronized (random) {
+			if (p.jitter > 0) {
+				delay += (long) (random.nextDouble() * p.jitter);
+			}
+			failure = random.nextDouble();
+		}
+		if (delay > 0) {
+			Thread.sleep(delay);
+		}
+		return failure >= p.errorRate;
+	}
+
+	/**
+	 * Create an OSRM route response through the given "lon,lat" stops, with the geometry of each
+	 * leg in a single step.
+	 */
+	static String createBatchRoute(String[] stops, int waypointsPerLeg) {
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"code\": \"Ok\", \"routes\": [{\"legs\": [");
+		for (int i = 1; i < stops.length; i++) {
+			String[] from = stops[i - 1].split(",");
+			String[] to = stops[i].split(",");
+			double flon = Double.parseDouble(from[0]);
+			double flat = Double.parseDouble(from[1]);
+			double tlon = Double.parseDouble(to[0]);
+			double tlat = Double.parseDouble(to[1]);
+			if (i > 1) {
+				sb.append(", ");
+			}
+			sb.append("{\"steps\": [{\"geometry\": {\"type\": \"LineString\", \"coordinates\": [");
+			int segments = Math.max(1, waypointsPerLeg - 1);
+			for (int j = 0; j < waypointsPerLeg; j++) {
+				double t = (double) j / segments;
+				double wiggle = Math.sin(t * Math.PI * 6) * 0.0001;
+				if (j > 0) {
+					sb.append(", ");
+				}
+				sb.append(String.format(Locale.ROOT, "[%.6f, %.6f]", flon + (tlon - flon) * t,
+						flat + (tlat - flat) * t + wiggle));
+			}
+			sb.append("]}}]}");
+		}
+		sb.append("]}]}");
+		return sb.toString();
+	}
+
+	/**
+	 * Create a geojson route in the layout returned by YOURS.
+	 */
+	static String createRoute(double flat, double flon, double tlat, double tlon, int waypoints,
+			boolean instructions) {
+		StringBuilder sb = new StringBuilder(64 + waypoints * 30);
+		sb.append("{\n  \"type\": \"LineString\",\n");
+		sb.append("  \"crs\": {\n    \"type\": \"name\",\n    \"properties\": {\n");
+		sb.append("      \"name\": \"urn:ogc:def:crs:EPSG::4326\"\n    }\n  },\n");
+		sb.append("  \"coordinates\":\n  [\n");
+		int segments = Math.max(1, waypoints - 1);
+		for (int i = 0; i < waypoints; i++) {
+			double t = (double) i / segments;
+			double wiggle = Math.sin(t * Math.PI * 6) * 0.0001;
+			double lat = flat + (tlat - flat) * t + wiggle;
+			double lon = flon + (tlon - flon) * t;
+			sb.append(i == 0 ? "  [" : "  ,[");
+			sb.append(String.format(Locale.ROOT, "%.6f, %.6f", lon, lat)).append("]\n");
+		}
+		sb.append("  ],\n  \"properties\": {\n");
+		sb.append("    \"distance\": \"").append(String.format(Locale.ROOT, "%.3f", waypoints * 0.004)).append("\",\n");
+		if (instructions) {
+			sb.append("    \"description\": \"Go straight ahead.<br>Follow the path for ").append(waypoints)
+					.append(" waypoints.<br>Finish!\",\n");
+		} else {
+			sb.append("    \"description\": \"\",\n");
+		}
+		sb.append("    \"traveltime\": \"").append(waypoints * 3).append("\"\n  }\n}\n");
+		return sb.toString();
+	}
+
+	private static Map<String, String> parseQuery(URI uri) {
+		Map<String, String> result = new HashMap<String, String>();
+		String query = uri.getRawQuery();
+		if (query != null) {
+			for (String pair : query.split("&")) {
+				int eq = pair.indexOf('=');
+				if (eq > 0) {
+					result.put(pair.substring(0, eq), pair.substring(eq + 1));
+				}
+			}
+		}
+		return result;
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		byte[] bytes = body.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+		if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+			ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+			GZIPOutputStream gzip = new GZIPOutputStream(compressed);
+			gzip.write(bytes);
+			gzip.close();
+			bytes = compressed.toByteArray();
+			exchange.getResponseHeaders().set("Content-Encoding", "gzip");
+		}
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+		Profile profile = Profile.preset(args.length > 1 ? args[1] : "campus");
+		if (args.length > 2)
+			profile.latency = Long.parseLong(args[2]);
+		if (args.length > 3)
+			profile.jitter = Long.parseLong(args[3]);
+		if (args.length > 4)
+			profile.errorRate = Double.parseDouble(args[4]);
+		if (args.length > 5)
+			profile.waypoints = Integer.parseInt(args[5]);
+
+		StubRoutingServer server = new StubRoutingServer(port, profile);
+		server.start();
+		System.out.println("Stub routing server listening on " + server.getBaseUrl());
+	}
+}
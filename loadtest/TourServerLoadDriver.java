@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Load driver for TourServer. Simulates many clients concurrently: each creates a session,
+ * selects random POIs, reads back its tour and requests the tour's route, as a kiosk would.
+ * Reports throughput and latency percentiles for each kind of request.
+ *
+ * Usage: TourServerLoadDriver [server URL] [clients] [threads] [POIs per tour]
+ *
+ * With no server URL (or "stub"), a TourServer backed by a StubRoutingServer with the campus
+ * profile is started in this process, so the whole test runs on one machine.
+ */
+public class TourServerLoadDriver {
+	private String serverUrl;
+	private List<String> poiIds = new ArrayList<String>();
+	private RoutingLoadDriver.LatencyRecorder sessions = new RoutingLoadDriver.LatencyRecorder();
+	private RoutingLoadDriver.LatencyRecorder selections = new RoutingLoadDriver.LatencyRecorder();
+	private RoutingLoadDriver.LatencyRecorder tours = new RoutingLoadDriver.LatencyRecorder();
+	private RoutingLoadDriver.LatencyRecorder routes = new RoutingLoadDriver.LatencyRecorder();
+
+	public TourServerLoadDriver(String serverUrl) throws IOException, JSONException {
+		this.serverUrl = serverUrl;
+		JSONArray pois = new JSONArray(request("GET", "pois", null));
+		for (int i = 0; i < pois.length(); i++) {
+			poiIds.add(pois.getJSONObject(i).getString("id"));
+		}
+	}
+
+	/**
+	 * Simulate clients and print a report to standard output.
+	 *
+	 * @param clients
+	 *            Number of clients to simulate.
+	 * @param threads
+	 *            Number of clients active at the same time.
+	 * @param poisPerTour
+	 *            Number of POIs each client selects.
+	 */
+	public void run(int clients, int threads, final int poisPerTour) throws InterruptedException {
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		final AtomicInteger completed = new AtomicInteger();
+		final Random seeds = new Random(210);
+
+		long startTime = System.nanoTime();
+		for (int c = 0; c < clients; c++) {
+			final long seed = seeds.nextLong();
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					if (simulateClient(new Random(seed), poisPerTour)) {
+						completed.incrementAndGet();
+					}
+				}
+			});
+		}
+		executor.shutdown();
+		executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		double seconds = (System.nanoTime() - startTime) / 1e9;
+
+		System.out.println(String.format("%d clients of %d POIs in %.2fs using %d threads (%.1f clients/s)",
+				completed.get(), poisPerTour, seconds, threads, completed.get() / seconds));
+		System.out.println(sessions.report("session", seconds));
+		System.out.println(selections.report("select", seconds));
+		System.out.println(tours.report("tour", seconds));
+		System.out.println(routes.report("route", seconds));
+	}
+
+	/**
+	 * Run one client's requests, stopping at the first failure.
+	 *
+	 * @return true if every request succeeded.
+	 */
+	private boolean simulateClient(Random random, int poisPerTour) {
+		String session;
+		long start = System.nanoTime();
+		try {
+			session = new JSONObject(request("POST", "sessions", null)).getString("session");
+			sessions.record(System.nanoTime() - start);
+		} catch (Exception e) {
+			sessions.recordError();
+			return false;
+		}
+
+		List<String> ids = new ArrayList<String>(poiIds);
+		Collections.shuffle(ids, random);
+		JSONArray selected = new JSONArray();
+		for (String id : ids.subList(0, Math.min(poisPerTour, ids.size()))) {
+			selected.put(id);
+		}
+
+		start = System.nanoTime();
+		try {
+			request("PUT", "sessions/" + session + "/pois", selected.toString());
+			selections.record(System.nanoTime() - start);
+		} catch (IOException e) {
+			selections.recordError();
+			return false;
+		}
+
+		start = System.nanoTime();
+		try {
+			request("GET", "sessions/" + session + "/pois", null);
+			tours.record(System.nanoTime() - start);
+		} catch (IOException e) {
+			tours.recordError();
+			return false;
+		}
+
+		start = System.nanoTime();
+		try {
+			request("GET", "sessions/" + session + "/route", null);
+			routes.record(System.nanoTime() - start);
+		} catch (IOException e) {
+			routes.recordError();
+			return false;
+		}
+
+		try {
+			request("DELETE", "sessions/" + session, null);
+		} catch (IOException e) {
+			// the session expires in time anyway
+		}
+		return true;
+	}
+
+	/**
+	 * Make a request of the server.
+	 *
+	 * @return The body of the response.
+	 * @throws IOException
+	 *             if the request failed or the server responded with an error.
+	 */
+	private String request(String method, String path, String body) throws IOException {
+		HttpURLConnection connection = (HttpURLConnection) new URL(serverUrl + path).openConnection();
+		connection.setRequestMethod(method);
+		if (body != null) {
+			connection.setDoOutput(true);
+			connection.setRequestProperty("Content-Type", "application/json; charset=UTF-8");
+			OutputStream out = connection.getOutputStream();
+			try {
+				out.write(body.getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		}
+		int status = connection.getResponseCode();
+		if (status >= 400) {
+			throw new IOException(method + " " + path + " returned " + status);
+		}
+		if (status == 204) {
+			return "";
+		}
+		InputStream in = connection.getInputStream();
+		try {
+			StringBuilder sb = new StringBuilder();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				sb.append(new String(buffer, 0, n, "UTF-8"));
+			}
+			return sb.toString();
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException, JSONException {
+		String serverUrl = args.length > 0 ? args[0] : "stub";
+		int clients = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 32;
+		int pois = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+
+		StubRoutingServer stub = null;
+		TourServer server = null;
+		RoutingService routingService = null;
+		ExecutorService serverExecutor = null;
+		if (serverUrl.equals("stub")) {
+			stub = new StubRoutingServer(0, StubRoutingServer.Profile.preset("campus"));
+			stub.start();
+
+			RoutingTransportConfig transport = new RoutingTransportConfig();
+			transport.setMaxConnections(threads);
+			transport.setMaxConnectionsPerRoute(threads);
+			routingService = new RoutingService(stub.getBaseUrl(), transport);
+			routingService.setSymmetricRoutes(true);
+			server = new TourServer(0, POIRegistry.getDefault(), routingService,
+					new TourServer.StoreFactory() {
+						@Override
+						public KeyValueStore createStore(String sessionId) {
+							return new MemoryKeyValueStore();
+						}
+					});
+			serverExecutor = Executors.newFixedThreadPool(threads);
+			server.setExecutor(serverExecutor);
+			server.start();
+			serverUrl = "http://localhost:" + server.getPort() + "/";
+		} else if (!serverUrl.endsWith("/")) {
+			serverUrl += "/";
+		}
+
+		try {
+			new TourServerLoadDriver(serverUrl).run(clients, threads, pois);
+		} finally {
+			if (server != null) {
+				server.stop();
+				serverExecutor.shutdown();
+				routingService.shutdown();
+				stub.stop();
+			}
+		}
+	}
+}
@@ -0,0 +1,149 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bitmap indexes of the features of a list of points of interest. Each feature has a bitmap with
+ * one bit for each POI, set if the POI has the feature, so that a FeatureQuery is answered with a
+ * few bitwise operations per 64 POIs instead of a scan of every POI's features. An index is
+ * immutable once built, so it may be shared between threads.
+ */
+public class FeatureIndex {
+	/**
+	 * The result of a query: the matching POIs, and facet counts for each feature.
+	 */
+	public static class Result {
+		private List<PointOfInterest> pois;
+		private int[] counts;
+		private int[] addedCounts;
+
+		private Result(List<PointOfInterest> pois, int[] counts, int[] addedCounts) {
+			this.pois = Collections.unmodifiableList(pois);
+			this.counts = counts;
+			this.addedCounts = addedCounts;
+		}
+
+		/**
+		 * Get the matching POIs, in the order of the index.
+		 */
+		public List<PointOfInterest> getPOIs() {
+			return pois;
+		}
+
+		/**
+		 * Get the number of matching POIs with a feature.
+		 */
+		public int getCount(Feature feature) {
+			return counts[feature.ordinal()];
+		}
+
+		/**
+		 * Get the number of POIs within the bounds which have a feature but do not match, that is
+		 * the number of POIs that would be added by OR-ing the feature into the query.
+		 */
+		public int getAddedCount(Feature feature) {
+			return addedCounts[feature.ordinal()];
+		}
+	}
+
+	private List<PointOfInterest> pois;
+	private double[] latitudes;
+	private double[] longitudes;
+
+	/**
+	 * A bitmap of every POI, and one for each feature by ordinal.
+	 */
+	private long[] all;
+	private long[][] features;
+
+	/**
+	 * Build an index.
+	 *
+	 * @param pois
+	 *            The POIs to index. Query results list them in the same order.
+	 */
+	public FeatureIndex(List<PointOfInterest> pois) {
+		this.pois = new ArrayList<PointOfInterest>(pois);
+		int words = (this.pois.size() + 63) >>> 6;
+		latitudes = new double[this.pois.size()];
+		longitudes = new double[this.pois.size()];
+		all = new long[words];
+		features = new long[Feature.values().length][words];
+		for (int i = 0; i < latitudes.length; i++) {
+			PointOfInterest poi = this.pois.get(i);
+			latitudes[i] = poi.getLatLong().getLatitude();
+			longitudes[i] = poi.getLatLong().getLongitude();
+			all[i >>> 6] |= 1L << i;
+			for (Feature f : poi.getFeatures()) {
+				features[f.ordinal()][i >>> 6] |= 1L << i;
+			}
+		}
+	}
+
+	/**
+	 * Find the POIs matching a query, within optional bounds, and count the features of the
+	 * result, in a single pass over the bitmaps.
+	 *
+	 * @param query
+	 *            The query.
+	 * @param southWest
+	 *            South west corner of the bounds, or null for no bounds.
+	 * @param northEast
+	 *            North east corner of the bounds, or null for no bounds.
+	 * @return The matching POIs and facet counts. Facet counts only include POIs within the
+	 *         bounds.
+	 */
+	public Result query(FeatureQuery query, LatLong southWest, LatLong northEast) {
+		long[] bounds = southWest == null || northEast == null ? all : getBounds(southWest, northEast);
+		long[] match = query.evaluate(this);
+		List<PointOfInterest> result = new ArrayList<PointOfInterest>();
+		int[] counts = new int[features.length];
+		int[] addedCounts = new int[features.length];
+
+		for (int w = 0; w < match.length; w++) {
+			long matched = match[w] & bounds[w];
+			long unmatched = bounds[w] & ~matched;
+			for (int f = 0; f < features.length; f++) {
+				counts[f] += Long.bitCount(features[f][w] & matched);
+				addedCounts[f] += Long.bitCount(features[f][w] & unmatched);
+			}
+			while (matched != 0) {
+				result.add(pois.get((w << 6) + Long.numberOfTrailingZeros(matched)));
+				matched &= matched - 1;
+			}
+		}
+		return new Result(result, counts, addedCounts);
+	}
+
+	/**
+	 * Get the number of 64-bit words in each bitmap.
+	 */
+	int getWordCount() {
+		return all.length;
+	}
+
+	/**
+	 * Get a copy of the bitmap of every POI.
+	 */
+	long[] getAll() {
+		return all.clone();
+	}
+
+	/**
+	 * Get a copy of the bitmap of the POIs with a feature.
+	 */
+	long[] getBitmap(Feature feature) {
+		return features[feature.ordinal()].clone();
+	}
+
+	private long[] getBounds(LatLong southWest, LatLong northEast) {
+		long[] bits = new long[all.length];
+		for (int i = 0; i < latitudes.length; i++) {
+			if (latitudes[i] >= southWest.getLatitude() && latitudes[i] <= northEast.getLatitude()
+					&& longitudes[i] >= southWest.getLongitude() && longitudes[i] <= northEast.getLongitude()) {
+				bits[i >>> 6] |= 1L << i;
+			}
+		}
+		return bits;
+	}
+}
@@ -0,0 +1,155 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A boolean expression over the sustainability features of points of interest, such as
+ * "Solar Energy AND NOT (Biofuel OR Geothermal)". Queries are built with the static methods of
+ * this class and evaluated against the bitmap indexes of a FeatureIndex (see
+ * {@link POIRegistry#query(FeatureQuery, LatLong, LatLong)}). Queries are immutable.
+ */
+public abstract class FeatureQuery {
+	/**
+	 * Evaluate the query.
+	 *
+	 * @param index
+	 *            The index to evaluate against.
+	 * @return A new bitmap of the POIs matching the query, by index position.
+	 */
+	abstract long[] evaluate(FeatureIndex index);
+
+	/**
+	 * Get a query matching every POI.
+	 */
+	public static FeatureQuery all() {
+		return new FeatureQuery() {
+			@Override
+			long[] evaluate(FeatureIndex index) {
+				return index.getAll();
+			}
+
+			@Override
+			public String toString() {
+				return "ALL";
+			}
+		};
+	}
+
+	/**
+	 * Get a query matching the POIs with a feature.
+	 */
+	public static FeatureQuery has(final Feature feature) {
+		return new FeatureQuery() {
+			@Override
+			long[] evaluate(FeatureIndex index) {
+				return index.getBitmap(feature);
+			}
+
+			@Override
+			public String toString() {
+				return feature.getDisplayName();
+			}
+		};
+	}
+
+	/**
+	 * Get a query matching the POIs which match every one of the given queries. With no queries,
+	 * every POI matches.
+	 */
+	public static FeatureQuery and(FeatureQuery... queries) {
+		return new Combination(true, Arrays.asList(queries));
+	}
+
+	/**
+	 * Get a query matching the POIs which match any of the given queries. With no queries, no POI
+	 * matches.
+	 */
+	public static FeatureQuery or(FeatureQuery... queries) {
+		return new Combination(false, Arrays.asList(queries));
+	}
+
+	/**
+	 * Get a query matching the POIs which do not match the given query.
+	 */
+	public static FeatureQuery not(final FeatureQuery query) {
+		return new FeatureQuery() {
+			@Override
+			long[] evaluate(FeatureIndex index) {
+				long[] all = index.getAll();
+				long[] bits = query.evaluate(index);
+				for (int i = 0; i < bits.length; i++) {
+					bits[i] = ~bits[i] & all[i];
+				}
+				return bits;
+			}
+
+			@Override
+			public String toString() {
+				return "NOT " + query;
+			}
+		};
+	}
+
+	/**
+	 * Get a query matching the POIs with any of the given features, as selected in the features
+	 * list.
+	 */
+	public static FeatureQuery anyOf(List<Feature> features) {
+		List<FeatureQuery> queries = new ArrayList<FeatureQuery>(features.size());
+		for (Feature f : features) {
+			queries.add(has(f));
+		}
+		return new Combination(false, queries);
+	}
+
+	/**
+	 * Get a query matching the POIs with all of the given features.
+	 */
+	public static FeatureQuery allOf(List<Feature> features) {
+		List<FeatureQuery> queries = new ArrayList<FeatureQuery>(features.size());
+		for (Feature f : features) {
+			queries.add(has(f));
+		}
+		return new Combination(true, queries);
+	}
+
+	/**
+	 * The AND or the OR of several queries.
+	 */
+	private static class Combination extends FeatureQuery {
+		private boolean and;
+		private List<FeatureQuery> queries;
+
+		private Combination(boolean and, List<FeatureQuery> queries) {
+			this.and = and;
+			this.queries = new ArrayList<FeatureQuery>(queries);
+		}
+
+		@Override
+		long[] evaluate(FeatureIndex index) {
+			if (queries.isEmpty()) {
+				return and ? index.getAll() : new long[index.getWordCount()];
+			}
+			long[] result = queries.get(0).evaluate(index);
+			for (int q = 1; q < queries.size(); q++) {
+				long[] bits = queries.get(q).evaluate(index);
+				for (int i = 0; i < result.length; i++) {
+					result[i] = and ? result[i] & bits[i] : result[i] | bits[i];
+				}
+			}
+			return result;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder("(");
+			for (FeatureQuery q : queries) {
+				if (sb.length() > 1) {
+					sb.append(and ? " AND " : " OR ");
+				}
+				sb.append(q);
+			}
+			return sb.append(')').toString();
+		}
+	}
+}
@@ -0,0 +1,241 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects when the user reaches or leaves a point of interest. Each POI is given a circular
+ * geofence; a listener is told when the user enters the circle, and when they leave it again.
+ * Leaving is only reported once the user is a hysteresis distance beyond the radius, so that a
+ * user standing near the edge (or a noisy location) does not cause a stream of events.
+ *
+ * Geofences are indexed in a uniform grid of square cells. Each geofence is listed in every cell
+ * its exit circle touches, so checking a location only measures the distance to the geofences in
+ * the location's cell (and those the user is already inside), however many geofences there are.
+ * This class is not thread-safe.
+ */
+public class GeofenceEngine {
+	/**
+	 * Receives the events of a geofence engine.
+	 */
+	public interface Listener {
+		/**
+		 * Called when the user comes within the radius of a POI.
+		 */
+		void onEnter(PointOfInterest poi);
+
+		/**
+		 * Called when the user, having entered the geofence of a POI, moves more than the radius
+		 * plus the hysteresis distance from it.
+		 */
+		void onExit(PointOfInterest poi);
+	}
+
+	/**
+	 * The geofence of one POI.
+	 */
+	private static class Geofence {
+		private PointOfInterest poi;
+		private double latitude;
+		private double longitude;
+		private double radius;
+		private double exitRadius;
+
+		/**
+		 * The range of cells the fence is listed in.
+		 */
+		private long minRow;
+		private long maxRow;
+		private long minColumn;
+		private long maxColumn;
+	}
+
+	private Listener listener;
+	private double cellSize;
+	private double hysteresis;
+
+	/**
+	 * Size of a cell in degrees of latitude and longitude. The longitude step is fixed from the
+	 * latitude of the first geofence, which is accurate enough over a city.
+	 */
+	private double cellLatitude;
+	private double cellLongitude = Double.NaN;
+
+	private DistanceKernel kernel;
+	private Map<Long, List<Geofence>> cells = new HashMap<Long, List<Geofence>>();
+	private Map<String, Geofence> geofences = new HashMap<String, Geofence>();
+
+	/**
+	 * Geofences the user is inside, in the order they were entered.
+	 */
+	private Set<Geofence> inside = new LinkedHashSet<Geofence>();
+
+	/**
+	 * Create an engine with no geofences.
+	 *
+	 * @param listener
+	 *            Receives enter and exit events.
+	 * @param cellSize
+	 *            Size in metres of the grid cells. A size around twice the usual radius keeps the
+	 *            number of geofences listed in each cell small.
+	 * @param hysteresis
+	 *            Distance in metres beyond a geofence's radius the user must move before leaving
+	 *            it is reported.
+	 */
+	public GeofenceEngine(Listener listener, double cellSize, double hysteresis) {
+		this.listener = listener;
+		this.cellSize = cellSize;
+		this.hysteresis = hysteresis;
+		this.cellLatitude = cellSize / DistanceKernel.METRES_PER_DEGREE;
+	}
+
+	/**
+	 * Add a geofence around every POI of a registry.
+	 *
+	 * @param registry
+	 *            The registry.
+	 * @param radius
+	 *            Radius in metres of each geofence.
+	 */
+	public void addGeofences(POIRegistry registry, double radius) {
+		for (PointOfInterest poi : registry.getPointsByLocation()) {
+			addGeofence(poi, radius);
+		}
+	}
+
+	/**
+	 * Add a geofence around a POI, replacing any geofence it already has.
+	 *
+	 * @param poi
+	 *            The POI.
+	 * @param radius
+	 *            Radius in metres of the geofence.
+	 */
+	public void addGeofence(PointOfInterest poi, double radius) {
+		removeGeofence(poi);
+
+		Geofence fence = new Geofence();
+		fence.poi = poi;
+		fence.latitude = poi.getLatLong().getLatitude();
+		fence.longitude = poi.getLatLong().getLongitude();
+		fence.radius = radius;
+		fence.exitRadius = radius + hysteresis;
+		if (kernel == null) {
+			kernel = new EquirectangularKernel(fence.latitude);
+			cellLongitude = cellSize
+					/ (DistanceKernel.METRES_PER_DEGREE * Math.max(Math.cos(Math.toRadians(fence.latitude)), 1e-6));
+		}
+		geofences.put(poi.getId(), fence);
+
+		// list the fence in every cell touched by the bounding box of its exit
+		// circle
+		double exitLatitude = fence.exitRadius / cellSize * cellLatitude;
+		double exitLongitude = fence.exitRadius / cellSize * cellLongitude;
+		fence.minRow = getRow(fence.latitude - exitLatitude);
+		fence.maxRow = getRow(fence.latitude + exitLatitude);
+		fence.minColumn = getColumn(fence.longitude - exitLongitude);
+		fence.maxColumn = getColumn(fence.longitude + exitLongitude);
+		for (long row = fence.minRow; row <= fence.maxRow; row++) {
+			for (long column = fence.minColumn; column <= fence.maxColumn; column++) {
+				Long cell = getCell(row, column);
+				List<Geofence> list = cells.get(cell);
+				if (list == null) {
+					list = new ArrayList<Geofence>(2);
+					cells.put(cell, list);
+				}
+				list.add(fence);
+			}
+		}
+	}
+
+	/**
+	 * Remove the geofence of a POI. No exit event is reported for it.
+	 */
+	public void removeGeofence(PointOfInterest poi) {
+		Geofence fence = geofences.remove(poi.getId());
+		if (fence == null) {
+			return;
+		}
+		inside.remove(fence);
+		for (long row = fence.minRow; row <= fence.maxRow; row++) {
+			for (long column = fence.minColumn; column <= fence.maxColumn; column++) {
+				Long cell = getCell(row, column);
+				List<Geofence> list = cells.get(cell);
+				list.remove(fence);
+				if (list.isEmpty()) {
+					cells.remove(cell);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Check a new location of the user, reporting any geofences entered or left.
+	 *
+	 * @param latitude
+	 *            Latitude in degrees.
+	 * @param longitude
+	 *            Longitude in degrees.
+	 */
+	public void update(double latitude, double longitude) {
+		if (kernel == null) {
+			return;
+		}
+
+		// the user may have left geofences which are not listed in the new cell
+		List<Geofence> exited = null;
+		for (Geofence fence : inside) {
+			if (kernel.distance(latitude, longitude, fence.latitude, fence.longitude) > fence.exitRadius) {
+				if (exited == null) {
+					exited = new ArrayList<Geofence>();
+				}
+				exited.add(fence);
+			}
+		}
+		if (exited != null) {
+			for (Geofence fence : exited) {
+				inside.remove(fence);
+				listener.onExit(fence.poi);
+			}
+		}
+
+		List<Geofence> candidates = cells.get(getCell(getRow(latitude), getColumn(longitude)));
+		if (candidates == null) {
+			return;
+		}
+		for (int i = 0; i < candidates.size(); i++) {
+			Geofence fence = candidates.get(i);
+			if (!inside.contains(fence)
+					&& kernel.distance(latitude, longitude, fence.latitude, fence.longitude) <= fence.radius) {
+				inside.add(fence);
+				listener.onEnter(fence.poi);
+			}
+		}
+	}
+
+	/**
+	 * Get the POIs whose geofences the user is inside, in the order they were entered.
+	 */
+	public List<PointOfInterest> getInside() {
+		List<PointOfInterest> result = new ArrayList<PointOfInterest>(inside.size());
+		for (Geofence fence : inside) {
+			result.add(fence.poi);
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	private long getRow(double latitude) {
+		return (long) Math.floor(latitude / cellLatitude);
+	}
+
+	private long getColumn(double longitude) {
+		return (long) Math.floor(longitude / cellLongitude);
+	}
+
+	private static Long getCell(long row, long column) {
+		return (row << 32) ^ (column & 0xffffffffL);
+	}
+}
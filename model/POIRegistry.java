@@ -1,14 +1,59 @@
 import java.io.IOException;
+import java.text.CollationKey;
+import java.text.Collator;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Collections;
+import java.util.Locale;
 
 import org.xml.sax.SAXException;
 import org.xml.sax.XMLReader;
 import org.xml.sax.helpers.XMLReaderFactory;
 
 public class POIRegistry {
-	private static List<PointOfInterest> reg = new LinkedList<PointOfInterest>();
+	private List<PointOfInterest> reg = new LinkedList<PointOfInterest>();
+	
+	/**
+	 * Bitmap indexes of the features of the registered points, built when
+	 * first queried, or null if they must be built again.
+	 */
+	private volatile FeatureIndex featureIndex;
+	
+	/**
+	 * Search index of the names, addresses and descriptions of the 
+	 * registered points, or null if it must be built again.
+	 */
+	private volatile POISearchIndex searchIndex;
+	
+	/**
+	 * An immutable view of the registered points in some order, with the key
+	 * (such as a locale) it was sorted for.
+	 */
+	private static class SortedView {
+		private Object key;
+		private List<PointOfInterest> points;
+		
+		private SortedView(Object key, PointOfInterest[] points) {
+			this.key = key;
+			this.points = Collections.unmodifiableList(Arrays.asList(points));
+		}
+	}
+	
+	/**
+	 * The registered points in walking tour order, in alphabetical order for
+	 * a locale, and in order of distance from the point of the last call to 
+	 * getPointsByDistance. Each is built when first asked for, and is null 
+	 * if it must be built again.
+	 */
+	private volatile List<PointOfInterest> byLocation;
+	private volatile SortedView alphabetical;
+	private volatile SortedView byDistance;
+	private volatile GeoPoints geoPoints;
+	
+	private final static DistanceKernel DISTANCE_KERNEL = new HaversineKernel();
 		
 	/**
 	 * Static default instance.
@@ -19,8 +64,19 @@ public class POIRegistry {
 		return defaultInstance;
 	}
 	
-	public void add(PointOfInterest poi) {
+	/**
+	 * Register a point. Synchronized with the building of the sorted views
+	 * and indexes, so that a view being built from the old points is not
+	 * stored after this point has been added.
+	 */
+	public synchronized void add(PointOfInterest poi) {
 		reg.add(poi);
+		featureIndex = null;
+		searchIndex = null;
+		byLocation = null;
+		alphabetical = null;
+		byDistance = null;
+		geoPoints = null;
 	}
 
 	/**
@@ -42,6 +98,8 @@ public class POIRegistry {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		// build the search index now, so that the first search is fast
+		result.getSearchIndex();
 		return result;
 	}
 
@@ -64,13 +122,51 @@ public class POIRegistry {
 	/**
 	* Return registered points of interest sorted by display name
 	*
-	* Effects: Return registered points of interest sorted by display * 
-	* name with capitals sorted before lower case
+	* Effects: Return an unmodifiable list of registered points of interest
+	* sorted by display name in the order of the default locale. The list is 
+	* sorted once and reused until a point is added or the default locale
+	* changes.
 	*/
 	public List<PointOfInterest> getPointsAlphabetical() {
-		LinkedList<PointOfInterest> newlist = new LinkedList<PointOfInterest>(reg);
-		Collections.sort(newlist);
-		return newlist;
+		SortedView view = alphabetical;
+		Locale locale = Locale.getDefault();
+		if (view == null || !locale.equals(view.key)) {
+			synchronized (this) {
+				view = alphabetical;
+				if (view == null || !locale.equals(view.key)) {
+					view = new SortedView(locale, sortAlphabetical(getPointsByLocation(), locale));
+					alphabetical = view;
+				}
+			}
+		}
+		return view.points;
+	}
+	
+	/**
+	 * Sort points by display name with a collator, comparing collation keys
+	 * computed once for each point.
+	 */
+	private static PointOfInterest[] sortAlphabetical(List<PointOfInterest> points, Locale locale) {
+		Collator collator = Collator.getInstance(locale);
+		final CollationKey[] keys = new CollationKey[points.size()];
+		Integer[] order = new Integer[points.size()];
+		for (int i = 0; i < keys.length; i++) {
+			keys[i] = collator.getCollationKey(points.get(i).getDisplayName());
+			order[i] = i;
+		}
+		// the sort is stable, so points with equal names stay in walking
+		// tour order
+		Arrays.sort(order, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return keys[a].compareTo(keys[b]);
+			}
+		});
+		PointOfInterest[] sorted = new PointOfInterest[order.length];
+		for (int i = 0; i < sorted.length; i++) {
+			sorted[i] = points.get(order[i]);
+		}
+		return sorted;
 	}
 
 	
@@ -80,10 +176,69 @@ public class POIRegistry {
 	* that you are given in the project description in walking tour
 	* order.
 	*
-	* Effects: Return list of registered points of interest in walking * tour order
+	* Effects: Return an unmodifiable list of registered points of interest
+	* in walking tour order
 	*/
 	public List<PointOfInterest> getPointsByLocation() {
-		return reg;
+		List<PointOfInterest> result = byLocation;
+		if (result == null) {
+			synchronized (this) {
+				result = byLocation;
+				if (result == null) {
+					result = Collections.unmodifiableList(new ArrayList<PointOfInterest>(reg));
+					byLocation = result;
+				}
+			}
+		}
+		return result;
+	}
+	
+	/**
+	* Return registered points of interest sorted by distance from a point.
+	*
+	* Requires: from is not null
+	* Effects: Return an unmodifiable list of registered points of interest
+	* sorted by distance from from, nearest first. The list is reused while
+	* the same point is asked for and no point is added.
+	*/
+	public List<PointOfInterest> getPointsByDistance(LatLong from) {
+		SortedView view = byDistance;
+		if (view != null && from.equals(view.key)) {
+			return view.points;
+		}
+		synchronized (this) {
+			view = byDistance;
+			if (view != null && from.equals(view.key)) {
+				return view.points;
+			}
+			final List<PointOfInterest> points = getPointsByLocation();
+			if (geoPoints == null) {
+				List<LatLong> locations = new ArrayList<LatLong>(points.size());
+				for (PointOfInterest p : points) {
+					locations.add(p.getLatLong());
+				}
+				geoPoints = new GeoPoints(locations);
+			}
+			final double[] distances = new double[points.size()];
+			DISTANCE_KERNEL.distances(from.getLatitude(), from.getLongitude(), geoPoints, distances);
+			Integer[] order = new Integer[points.size()];
+			for (int i = 0; i < order.length; i++) {
+				order[i] = i;
+			}
+			Arrays.sort(order, new Comparator<Integer>() {
+				@Override
+				public int compare(Integer a, Integer b) {
+					return Double.compare(distances[a], distances[b]);
+				}
+			});
+			PointOfInterest[] sorted = new PointOfInterest[order.length];
+			for (int i = 0; i < sorted.length; i++) {
+				sorted[i] = points.get(order[i]);
+			}
+			view = new SortedView(from, sorted);
+			byDistance = view;
+			return view.points;
+		}
 	}
 		
 		
@@ -102,6 +257,73 @@ public class POIRegistry {
 		}
 		return result;
 	}
+	
+	/**
+	* Find the registered points of interest matching a feature query, with
+	* counts of the features of the result.
+	*
+	* Requires: query is not null
+	* Effects: Return the points matching query in walking tour order, with 
+	* the number of matching points with each feature and the number of
+	* points each feature would add to the result if OR-ed into the query
+	*/
+	public FeatureIndex.Result query(FeatureQuery query) {
+		return getFeatureIndex().query(query, null, null);
+	}
+	
+	/**
+	* Find the registered points of interest within bounds which match a 
+	* feature query, with counts of the features of the result.
+	*
+	* Requires: query is not null
+	* Effects: As query(FeatureQuery), only including points with a latitude 
+	* and longitude between those of southWest and northEast. If either
+	* corner is null, there are no bounds.
+	*/
+	public FeatureIndex.Result query(FeatureQuery query, LatLong southWest, LatLong northEast) {
+		return getFeatureIndex().query(query, southWest, northEast);
+	}
+	
+	/**
+	* Search the registered points of interest by name, address and
+	* description.
+	*
+	* Requires: query is not null
+	* Effects: Return at most limit points matching every word of query,
+	* best match first, allowing for typos and treating the last word as
+	* a prefix. Return an empty list if query has no words.
+	*/
+	public List<PointOfInterest> search(String query, int limit) {
+		return getSearchIndex().search(query, limit);
+	}
+	
+	private POISearchIndex getSearchIndex() {
+		POISearchIndex index = searchIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = searchIndex;
+				if (index == null) {
+					index = new POISearchIndex(reg);
+					searchIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+	
+	private FeatureIndex getFeatureIndex() {
+		FeatureIndex index = featureIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = featureIndex;
+				if (index == null) {
+					index = new FeatureIndex(reg);
+					featureIndex = index;
+				}
+			}
+		}
+		return index;
+	}
 }
 	
 	
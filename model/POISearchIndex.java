@@ -0,0 +1,364 @@
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Search index over the points of interest of a registry, for finding POIs by what the user
+ * types. Words of display names are kept in a trie, which answers exact words and prefixes of the
+ * word being typed. A query word which is neither is looked for within one or two typos (a wrong,
+ * missing, extra or swapped character), by walking the trie with the rows of the edit distance
+ * table, and abandoning a branch once no row entry is within the typos allowed. Words of addresses
+ * and descriptions are indexed by their trigrams, so that a query word matches them when enough
+ * of its trigrams do.
+ *
+ * Every word of a query must match for a POI to be found. Matches in the name rank above those in
+ * the address or description, exact words above prefixes, and prefixes above typos. Text is
+ * compared without case or accents. An index is immutable once built, so it may be shared between
+ * threads.
+ */
+public class POISearchIndex {
+	/**
+	 * Scores of a query word matching a word of a name exactly, as a prefix and within a typo
+	 * (less a point for each edit), and the best score of a word matching the trigrams of an
+	 * address or description.
+	 */
+	private final static float EXACT_SCORE = 10;
+	private final static float PREFIX_SCORE = 7;
+	private final static float FUZZY_SCORE = 5;
+	private final static float TRIGRAM_SCORE = 3;
+
+	/**
+	 * Minimum length of a query word for one typo to be allowed, and for two.
+	 */
+	private final static int ONE_TYPO_LENGTH = 4;
+	private final static int TWO_TYPO_LENGTH = 8;
+
+	/**
+	 * Fraction of a query word's trigrams which must be found in the same POI.
+	 */
+	private final static float TRIGRAM_MATCH = 0.5f;
+
+	private final static int[] NO_POSTINGS = new int[0];
+
+	/**
+	 * A node of the trie of name words.
+	 */
+	private static class Node {
+		private char[] labels = new char[0];
+		private Node[] children = new Node[0];
+
+		/**
+		 * The POIs with a name word ending at this node, in ascending order without duplicates.
+		 */
+		private int[] postings = NO_POSTINGS;
+
+		private Node getChild(char c) {
+			int i = Arrays.binarySearch(labels, c);
+			return i < 0 ? null : children[i];
+		}
+
+		private Node addChild(char c) {
+			int i = Arrays.binarySearch(labels, c);
+			if (i >= 0) {
+				return children[i];
+			}
+			i = -i - 1;
+			char[] newLabels = new char[labels.length + 1];
+			Node[] newChildren = new Node[children.length + 1];
+			System.arraycopy(labels, 0, newLabels, 0, i);
+			System.arraycopy(children, 0, newChildren, 0, i);
+			System.arraycopy(labels, i, newLabels, i + 1, labels.length - i);
+			System.arraycopy(children, i, newChildren, i + 1, children.length - i);
+			newLabels[i] = c;
+			newChildren[i] = new Node();
+			labels = newLabels;
+			children = newChildren;
+			return newChildren[i];
+		}
+
+		private void addPosting(int poi) {
+			// POIs are added in order, so a duplicate can only be the last
+			if (postings.length > 0 && postings[postings.length - 1] == poi) {
+				return;
+			}
+			postings = Arrays.copyOf(postings, postings.length + 1);
+			postings[postings.length - 1] = poi;
+		}
+	}
+
+	private List<PointOfInterest> pois;
+	private Node root = new Node();
+
+	/**
+	 * The POIs with an address or description word containing each trigram, in ascending order
+	 * without duplicates.
+	 */
+	private Map<String, int[]> trigrams = new HashMap<String, int[]>();
+
+	/**
+	 * Build an index.
+	 *
+	 * @param pois
+	 *            The POIs to index.
+	 */
+	public POISearchIndex(List<PointOfInterest> pois) {
+		this.pois = new ArrayList<PointOfInterest>(pois);
+		Map<String, List<Integer>> trigramLists = new HashMap<String, List<Integer>>();
+		for (int i = 0; i < this.pois.size(); i++) {
+			PointOfInterest poi = this.pois.get(i);
+			for (String word : tokenize(poi.getDisplayName())) {
+				Node node = root;
+				for (int c = 0; c < word.length(); c++) {
+					node = node.addChild(word.charAt(c));
+				}
+				node.addPosting(i);
+			}
+			List<String> words = tokenize(poi.getAddress());
+			words.addAll(tokenize(poi.getDescription()));
+			for (String word : words) {
+				for (String trigram : getTrigrams(word, true)) {
+					List<Integer> list = trigramLists.get(trigram);
+					if (list == null) {
+						list = new ArrayList<Integer>();
+						trigramLists.put(trigram, list);
+					}
+					if (list.isEmpty() || list.get(list.size() - 1) != i) {
+						list.add(i);
+					}
+				}
+			}
+		}
+		for (Map.Entry<String, List<Integer>> entry : trigramLists.entrySet()) {
+			int[] postings = new int[entry.getValue().size()];
+			for (int i = 0; i < postings.length; i++) {
+				postings[i] = entry.getValue().get(i);
+			}
+			trigrams.put(entry.getKey(), postings);
+		}
+	}
+
+	/**
+	 * Find the POIs matching a query.
+	 *
+	 * @param query
+	 *            What the user typed. The last word is matched as a prefix, as it may not have been
+	 *            typed in full.
+	 * @param limit
+	 *            Maximum number of POIs to return.
+	 * @return The best matching POIs, best first, or an empty list if the query has no words.
+	 */
+	public List<PointOfInterest> search(String query, int limit) {
+		List<String> words = tokenize(query);
+		if (words.isEmpty()) {
+			return Collections.emptyList();
+		}
+
+		final float[] scores = new float[pois.size()];
+		int[] matchedWords = new int[pois.size()];
+		float[] wordScores = new float[pois.size()];
+		int[] trigramCounts = new int[pois.size()];
+		for (int w = 0; w < words.size(); w++) {
+			String word = words.get(w);
+			boolean last = w == words.size() - 1;
+			Arrays.fill(wordScores, 0);
+
+			Node node = root;
+			for (int c = 0; c < word.length() && node != null; c++) {
+				node = node.getChild(word.charAt(c));
+			}
+			boolean named = false;
+			if (node != null) {
+				score(node.postings, EXACT_SCORE, wordScores);
+				named = node.postings.length > 0;
+				if (last && node.children.length > 0) {
+					scorePrefix(node, wordScores);
+					named = true;
+				}
+			}
+			int maxEdits = word.length() >= TWO_TYPO_LENGTH ? 2 : word.length() >= ONE_TYPO_LENGTH ? 1 : 0;
+			if (!named && maxEdits > 0) {
+				int[][] rows = new int[word.length() + maxEdits + 1][word.length() + 1];
+				for (int i = 0; i <= word.length(); i++) {
+					rows[0][i] = i;
+				}
+				scoreFuzzy(root, 0, word.toCharArray(), rows, new char[rows.length], maxEdits, wordScores);
+			}
+			scoreTrigrams(word, !last, trigramCounts, wordScores);
+
+			for (int i = 0; i < wordScores.length; i++) {
+				if (wordScores[i] > 0) {
+					scores[i] += wordScores[i];
+					matchedWords[i]++;
+				}
+			}
+		}
+
+		// keep the best POIs in a heap with the worst of them on top, so that
+		// only the results returned are ever sorted
+		Comparator<Integer> worstFirst = new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				if (scores[a] != scores[b]) {
+					return scores[a] < scores[b] ? -1 : 1;
+				}
+				return pois.get(b).compareTo(pois.get(a));
+			}
+		};
+		PriorityQueue<Integer> best = new PriorityQueue<Integer>(Math.max(1, limit), worstFirst);
+		for (int i = 0; i < matchedWords.length && limit > 0; i++) {
+			if (matchedWords[i] == words.size()) {
+				if (best.size() < limit) {
+					best.add(i);
+				} else if (worstFirst.compare(i, best.peek()) > 0) {
+					best.poll();
+					best.add(i);
+				}
+			}
+		}
+
+		PointOfInterest[] result = new PointOfInterest[best.size()];
+		for (int i = result.length - 1; i >= 0; i--) {
+			result[i] = pois.get(best.poll());
+		}
+		return Arrays.asList(result);
+	}
+
+	/**
+	 * Score the POIs with a name word starting with the prefix ending at node.
+	 */
+	private static void scorePrefix(Node node, float[] wordScores) {
+		for (Node child : node.children) {
+			score(child.postings, PREFIX_SCORE, wordScores);
+			scorePrefix(child, wordScores);
+		}
+	}
+
+	/**
+	 * Score the POIs with a name word within maxEdits edits of word, walking the trie below node.
+	 *
+	 * @param depth
+	 *            Length of the trie word ending at node.
+	 * @param rows
+	 *            Rows of the edit distance table, one for each length of trie word; the rows up
+	 *            to depth are those of the word ending at node. Longer words than the query word
+	 *            plus maxEdits are not visited.
+	 * @param path
+	 *            The characters of the trie word ending at node.
+	 */
+	private static void scoreFuzzy(Node node, int depth, char[] word, int[][] rows, char[] path, int maxEdits,
+			float[] wordScores) {
+		int[] row = rows[depth];
+		int[] next = rows[depth + 1];
+		for (int c = 0; c < node.labels.length; c++) {
+			char label = node.labels[c];
+			next[0] = depth + 1;
+			int min = next[0];
+			for (int i = 1; i < next.length; i++) {
+				int distance = Math.min(Math.min(next[i - 1] + 1, row[i] + 1),
+						row[i - 1] + (word[i - 1] == label ? 0 : 1));
+				// swapping two adjacent characters is a single typo
+				if (i > 1 && depth > 0 && word[i - 1] == path[depth - 1] && word[i - 2] == label) {
+					distance = Math.min(distance, rows[depth - 1][i - 2] + 1);
+				}
+				next[i] = distance;
+				min = Math.min(min, distance);
+			}
+			Node child = node.children[c];
+			int distance = next[word.length];
+			if (distance > 0 && distance <= maxEdits) {
+				score(child.postings, FUZZY_SCORE - distance, wordScores);
+			}
+			// no word below can come closer than the best of this row
+			if (min <= maxEdits && depth + 2 < rows.length) {
+				path[depth] = label;
+				scoreFuzzy(child, depth + 1, word, rows, path, maxEdits, wordScores);
+			}
+		}
+	}
+
+	/**
+	 * Score the POIs whose address or description words contain enough of the trigrams of word.
+	 *
+	 * @param whole
+	 *            Indicates whether the word is complete, so that its end must also match.
+	 * @param counts
+	 *            Work array of a count for each POI, all zero. It is left all zero.
+	 */
+	private void scoreTrigrams(String word, boolean whole, int[] counts, float[] wordScores) {
+		List<String> wordTrigrams = getTrigrams(word, whole);
+		int needed = Math.max(1, (int) Math.ceil(wordTrigrams.size() * TRIGRAM_MATCH));
+		List<int[]> lists = new ArrayList<int[]>(wordTrigrams.size());
+		for (String trigram : wordTrigrams) {
+			int[] postings = trigrams.get(trigram);
+			if (postings != null) {
+				lists.add(postings);
+				for (int poi : postings) {
+					counts[poi]++;
+				}
+			}
+		}
+		for (int[] postings : lists) {
+			for (int poi : postings) {
+				if (counts[poi] >= needed) {
+					float score = TRIGRAM_SCORE * counts[poi] / wordTrigrams.size();
+					wordScores[poi] = Math.max(wordScores[poi], score);
+				}
+			}
+		}
+		for (int[] postings : lists) {
+			for (int poi : postings) {
+				counts[poi] = 0;
+			}
+		}
+	}
+
+	private static void score(int[] postings, float score, float[] wordScores) {
+		for (int poi : postings) {
+			wordScores[poi] = Math.max(wordScores[poi], score);
+		}
+	}
+
+	/**
+	 * Get the trigrams of a word, marking its start (and its end, if whole) with '$' so that
+	 * short words have trigrams too.
+	 */
+	private static List<String> getTrigrams(String word, boolean whole) {
+		String padded = "$" + word + (whole ? "$" : "");
+		List<String> result = new ArrayList<String>();
+		for (int i = 0; i + 3 <= padded.length(); i++) {
+			result.add(padded.substring(i, i + 3));
+		}
+		return result;
+	}
+
+	/**
+	 * Split text into lower case words without accents.
+	 */
+	static List<String> tokenize(String text) {
+		List<String> words = new ArrayList<String>();
+		if (text == null) {
+			return words;
+		}
+		String normalized = Normalizer.normalize(text.toLowerCase(), Normalizer.Form.NFD);
+		StringBuilder word = new StringBuilder();
+		for (int i = 0; i <= normalized.length(); i++) {
+			char c = i < normalized.length() ? normalized.charAt(i) : ' ';
+			if (Character.getType(c) == Character.NON_SPACING_MARK) {
+				continue;
+			}
+			if (Character.isLetterOrDigit(c)) {
+				word.append(c);
+			} else if (word.length() > 0) {
+				words.add(word.toString());
+				word.setLength(0);
+			}
+		}
+		return words;
+	}
+}
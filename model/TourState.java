@@ -1,7 +1,10 @@
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class TourState {
@@ -10,6 +13,22 @@ public class TourState {
 	private POIRegistry registry;
 	private String SelectedPOI = "SelectedPOI";
 	private String SelectedFeatures = "SelectedFeatures";
+	private String Version = "Version";
+	
+	/**
+	 * The selection as bitsets, and the version of the storage they were
+	 * read at, or -1 if they have not been read.
+	 */
+	private long bitsVersion = -1;
+	private BitSet poiBits;
+	private BitSet featureBits;
+	
+	/**
+	 * The index of each point in the registry's walking tour order, and the
+	 * list of points it was built from.
+	 */
+	private Map<String, Integer> poiIndices;
+	private List<PointOfInterest> indexedPOIs;
 	
 	public TourState(POIRegistry registry, KeyValueStore store) {
 		this.registry = registry;
@@ -75,6 +94,7 @@ public class TourState {
 		}
 		
 		store.putStringList(SelectedFeatures, listofstring);
+		incrementVersion();
 	}
 	
 	
@@ -90,21 +110,18 @@ public class TourState {
 	public void setSelectedFeatures(List<Feature> selectedFeatures) {
 		List<String> listofstr = new LinkedList<String>();
 		List<String> lstpoi = new LinkedList<String>();
-		Set<PointOfInterest> poiset = new HashSet<PointOfInterest>();
 		
 		for (Feature f : selectedFeatures){
 			listofstr.add(f.name());
 		}
 		store.putStringList(SelectedFeatures, listofstr);
 		
-		for(Feature f : selectedFeatures){
-			poiset.addAll(registry.getPointsWithFeature(f));
-		}
-			
-		for(PointOfInterest p : poiset  ) {
+		//one pass over the feature bitmaps, with the points in walking tour order
+		for(PointOfInterest p : registry.query(FeatureQuery.anyOf(selectedFeatures)).getPOIs()) {
 			lstpoi.add(p.getId());
 		}
-		store.putStringList(SelectedPOI, listofstr);
+		store.putStringList(SelectedPOI, lstpoi);
+		incrementVersion();
 	}
 		
 	
@@ -148,10 +165,90 @@ public class TourState {
 			return flist;
 		}
 		
+		//features are stored by name
 		for(String s: storefeature){
-			Feature.parseFeature(s);
+			flist.add(Feature.valueOf(s));
 		}
 		return flist;
 	}
+	
+	/**
+	* Get the version of the selection in storage.
+	*
+	* Effects: return a number which changes whenever the selected points
+	* of interest or features are set through any TourState over the same 
+	* storage, so that a screen can tell whether the selection has changed
+	* since it last looked by comparing versions.
+	*/
+	public long getVersion() {
+		List<String> stored = store.getStringList(Version);
+		return stored == null || stored.isEmpty() ? 0 : Long.parseLong(stored.get(0));
+	}
+	
+	/**
+	* Get the currently selected points of interest as a bitset.
+	*
+	* Effects: return a new bitset in which bit i is set if and only if
+	* the point at position i of the registry's getPointsByLocation() is 
+	* selected, as returned by getSelectedPOIs(). Storage is only read
+	* again if the version has changed.
+	*/
+	public BitSet getSelectedPOIBits() {
+		readBits();
+		return (BitSet) poiBits.clone();
+	}
+	
+	/**
+	* Get the currently selected features as a bitset.
+	*
+	* Effects: return a new bitset in which bit i is set if and only if
+	* the feature with ordinal i is selected, as returned by 
+	* getSelectedFeatures(). Storage is only read again if the version has
+	* changed.
+	*/
+	public BitSet getSelectedFeatureBits() {
+		readBits();
+		return (BitSet) featureBits.clone();
+	}
+	
+	private void readBits() {
+		long version = getVersion();
+		List<PointOfInterest> pois = registry.getPointsByLocation();
+		if (version == bitsVersion && pois == indexedPOIs) {
+			return;
+		}
+		if (pois != indexedPOIs) {
+			poiIndices = new HashMap<String, Integer>();
+			for (int i = 0; i < pois.size(); i++) {
+				poiIndices.put(pois.get(i).getId(), i);
+			}
+			indexedPOIs = pois;
+		}
+		
+		poiBits = new BitSet(pois.size());
+		List<String> storepoi = store.getStringList(SelectedPOI);
+		if (storepoi == null) {
+			poiBits.set(0, pois.size());
+		} else {
+			for (String s : storepoi) {
+				Integer i = poiIndices.get(s);
+				if (i != null) {
+					poiBits.set(i);
+				}
+			}
+		}
+		
+		featureBits = new BitSet(Feature.values().length);
+		for (Feature f : getSelectedFeatures()) {
+			featureBits.set(f.ordinal());
+		}
+		bitsVersion = version;
+	}
+	
+	private void incrementVersion() {
+		List<String> version = new ArrayList<String>(1);
+		version.add(Long.toString(getVersion() + 1));
+		store.putStringList(Version, version);
+	}
 
 }
@@ -0,0 +1,87 @@
+/**
+ * Stops requests to the routing server while it is failing. After a number of consecutive
+ * failures the breaker opens and requests are refused without being sent. Once the open time has
+ * passed, one trial request is let through: if it succeeds the breaker closes, otherwise it opens
+ * again. This class is thread-safe.
+ */
+public class CircuitBreaker {
+	/**
+	 * States of a circuit breaker.
+	 */
+	public enum State {
+		/** Requests are sent. */
+		CLOSED,
+		/** Requests are refused. */
+		OPEN,
+		/** A trial request has been let through, and others are refused until it completes. */
+		HALF_OPEN
+	}
+
+	private int failureThreshold;
+	private long openTime;
+
+	private State state = State.CLOSED;
+	private int failures;
+	private long openedAt;
+
+	/**
+	 * Create a circuit breaker.
+	 * 
+	 * @param failureThreshold
+	 *            Number of consecutive failures after which the breaker opens.
+	 * @param openTime
+	 *            Time in milliseconds the breaker stays open before a trial request is let through.
+	 */
+	public CircuitBreaker(int failureThreshold, long openTime) {
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+	}
+
+	/**
+	 * Decide whether a request may be sent. If this returns true, the outcome of the request must
+	 * be reported with {@link #recordSuccess()} or {@link #recordFailure()}.
+	 */
+	public synchronized boolean allowRequest() {
+		switch (state) {
+		case CLOSED:
+			return true;
+		case OPEN:
+			if (System.currentTimeMillis() - openedAt >= openTime) {
+				state = State.HALF_OPEN;
+				return true;
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	public synchronized void recordSuccess() {
+		failures = 0;
+		state = State.CLOSED;
+	}
+
+	public synchronized void recordFailure() {
+		failures++;
+		if (state == State.HALF_OPEN || failures >= failureThreshold) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis();
+		}
+	}
+
+	/**
+	 * Report that a request let through by {@link #allowRequest()} was abandoned (for example,
+	 * because the calling thread was interrupted) without telling whether the server is healthy.
+	 * If it was the trial request, another trial may be let through straight away.
+	 */
+	public synchronized void recordAbandoned() {
+		if (state == State.HALF_OPEN) {
+			state = State.OPEN;
+			openedAt = System.currentTimeMillis() - openTime;
+		}
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+}
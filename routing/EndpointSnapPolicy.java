@@ -0,0 +1,17 @@
+/**
+ * Policy for moving the endpoints of a requested route onto a coarser set of locations, so that
+ * requests for routes between nearby locations share a single cached route.
+ * 
+ * Implementations must be thread-safe, and must return equal LatLong values for every point that
+ * they map to the same location (RouteEndpoints are compared using LatLong.equals).
+ */
+public interface EndpointSnapPolicy {
+	/**
+	 * Snap a route endpoint.
+	 * 
+	 * @param point
+	 *            The requested endpoint.
+	 * @return The location to request the route from or to, in place of point.
+	 */
+	LatLong snap(LatLong point);
+}
@@ -0,0 +1,38 @@
+/**
+ * Snaps route endpoints to the centre of the cell of a grid which contains them. Cells are
+ * approximately square, with sides of the given length on the ground.
+ */
+public class GridSnapPolicy implements EndpointSnapPolicy {
+	/**
+	 * Height of a cell in degrees of latitude.
+	 */
+	private double latitudeStep;
+
+	/**
+	 * Create a grid snap policy.
+	 * 
+	 * @param gridSize
+	 *            Length of the side of a grid cell in metres. Endpoints are moved by at most
+	 *            gridSize / sqrt(2) metres.
+	 * @throws IllegalArgumentException
+	 *             If gridSize is not positive.
+	 */
+	public GridSnapPolicy(double gridSize) {
+		if (gridSize <= 0) {
+			throw new IllegalArgumentException("gridSize must be positive: " + gridSize);
+		}
+		latitudeStep = gridSize / DistanceKernel.METRES_PER_DEGREE;
+	}
+
+	@Override
+	public LatLong snap(LatLong point) {
+		long row = Math.round(point.getLatitude() / latitudeStep);
+		double latitude = row * latitudeStep;
+
+		// meridians converge towards the poles, so rows nearer the poles are split into
+		// fewer degrees of longitude
+		double longitudeStep = latitudeStep / Math.max(Math.cos(Math.toRadians(latitude)), 1e-6);
+		long column = Math.round(point.getLongitude() / longitudeStep);
+		return new LatLong(latitude, column * longitudeStep);
+	}
+}
@@ -0,0 +1,185 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Metrics reporter which keeps counters and histograms in memory, for export by polling (for
+ * example, to the log or a metrics backend). Histograms have one bucket per power of two, so
+ * percentiles are accurate to within a factor of two. The most recent trace spans are kept.
+ */
+public class InMemoryMetricsReporter implements RoutingMetricsReporter {
+	/**
+	 * Number of trace spans kept.
+	 */
+	private final static int MAX_SPANS = 256;
+
+	/**
+	 * A histogram of non-negative values.
+	 */
+	public static class Histogram {
+		private AtomicLongArray buckets = new AtomicLongArray(64);
+		private AtomicLong count = new AtomicLong();
+		private AtomicLong sum = new AtomicLong();
+		private AtomicLong max = new AtomicLong();
+
+		void record(long value) {
+			value = Math.max(0, value);
+			// bucket i holds values from 2^(i-1) to 2^i - 1
+			buckets.incrementAndGet(64 - Long.numberOfLeadingZeros(value));
+			count.incrementAndGet();
+			sum.addAndGet(value);
+			long m;
+			while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+				// retry until max is at least value
+			}
+		}
+
+		public long getCount() {
+			return count.get();
+		}
+
+		public long getMax() {
+			return max.get();
+		}
+
+		public double getMean() {
+			long n = count.get();
+			return n == 0 ? 0 : (double) sum.get() / n;
+		}
+
+		/**
+		 * Estimate a percentile.
+		 * 
+		 * @param p
+		 *            The percentile, between 0 and 1.
+		 * @return The upper bound of the bucket holding the percentile (capped at the maximum
+		 *         value recorded), or 0 if nothing has been recorded.
+		 */
+		public long getPercentile(double p) {
+			long n = count.get();
+			if (n == 0) {
+				return 0;
+			}
+			long rank = Math.max(1, (long) Math.ceil(p * n));
+			long seen = 0;
+			for (int i = 0; i < 64; i++) {
+				seen += buckets.get(i);
+				if (seen >= rank) {
+					long upper = i == 0 ? 0 : (i >= 63 ? Long.MAX_VALUE : (1L << i) - 1);
+					return Math.min(upper, getMax());
+				}
+			}
+			return getMax();
+		}
+	}
+
+	/**
+	 * A recorded trace span.
+	 */
+	public static class Span {
+		public final String traceId;
+		public final String name;
+		public final long startNanos;
+		public final long durationNanos;
+
+		Span(String traceId, String name, long startNanos, long durationNanos) {
+			this.traceId = traceId;
+			this.name = name;
+			this.startNanos = startNanos;
+			this.durationNanos = durationNanos;
+		}
+	}
+
+	private ConcurrentMap<String, AtomicLong> counters = new ConcurrentHashMap<String, AtomicLong>();
+	private ConcurrentMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+	/**
+	 * Most recent spans, oldest first. Access must be synchronized on the list.
+	 */
+	private List<Span> spans = new ArrayList<Span>();
+
+	@Override
+	public void count(String name) {
+		AtomicLong counter = counters.get(name);
+		if (counter == null) {
+			counters.putIfAbsent(name, new AtomicLong());
+			counter = counters.get(name);
+		}
+		counter.incrementAndGet();
+	}
+
+	@Override
+	public void recordTime(String name, long nanos) {
+		getHistogram(name).record(nanos);
+	}
+
+	@Override
+	public void recordValue(String name, long value) {
+		getHistogram(name).record(value);
+	}
+
+	@Override
+	public void recordSpan(String traceId, String name, long startNanos, long durationNanos) {
+		synchronized (spans) {
+			if (spans.size() == MAX_SPANS) {
+				spans.remove(0);
+			}
+			spans.add(new Span(traceId, name, startNanos, durationNanos));
+		}
+	}
+
+	/**
+	 * Get the value of a counter.
+	 */
+	public long getCount(String name) {
+		AtomicLong counter = counters.get(name);
+		return counter == null ? 0 : counter.get();
+	}
+
+	/**
+	 * Get a histogram, creating it if nothing has been recorded in it yet.
+	 */
+	public Histogram getHistogram(String name) {
+		Histogram histogram = histograms.get(name);
+		if (histogram == null) {
+			histograms.putIfAbsent(name, new Histogram());
+			histogram = histograms.get(name);
+		}
+		return histogram;
+	}
+
+	/**
+	 * Get the most recent trace spans, oldest first.
+	 */
+	public List<Span> getSpans() {
+		synchronized (spans) {
+			return new ArrayList<Span>(spans);
+		}
+	}
+
+	/**
+	 * Export all counters and histograms, one per line, sorted by name, as
+	 * "name count=... mean=... p50=... p99=... max=...". Times are in nanoseconds.
+	 */
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder();
+		for (Map.Entry<String, AtomicLong> e : new TreeMap<String, AtomicLong>(counters).entrySet()) {
+			sb.append(e.getKey()).append(" count=").append(e.getValue().get()).append('\n');
+		}
+		for (Map.Entry<String, Histogram> e : new TreeMap<String, Histogram>(histograms).entrySet()) {
+			Histogram h = e.getValue();
+			sb.append(e.getKey()).append(" count=").append(h.getCount())
+					.append(" mean=").append((long) h.getMean())
+					.append(" p50=").append(h.getPercentile(0.5))
+					.append(" p99=").append(h.getPercentile(0.99))
+					.append(" max=").append(h.getMax()).append('\n');
+		}
+		return sb.toString();
+	}
+}
@@ -0,0 +1,64 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.entity.HttpEntityWrapper;
+
+/**
+ * Wraps the entity of a gzip or deflate compressed response, decompressing its content as it is
+ * read.
+ */
+class InflatingEntity extends HttpEntityWrapper {
+	private boolean gzip;
+
+	/**
+	 * @param entity
+	 *            The compressed entity.
+	 * @param gzip
+	 *            true if the content is gzip compressed, false if it is deflate (zlib) compressed.
+	 */
+	InflatingEntity(HttpEntity entity, boolean gzip) {
+		super(entity);
+		this.gzip = gzip;
+	}
+
+	@Override
+	public InputStream getContent() throws IOException {
+		InputStream content = wrappedEntity.getContent();
+		return gzip ? new GZIPInputStream(content) : new InflaterInputStream(content);
+	}
+
+	/**
+	 * The length of the decompressed content is not known.
+	 */
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public void writeTo(OutputStream out) throws IOException {
+		InputStream in = getContent();
+		try {
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) != -1) {
+				out.write(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * The content returned by this entity is not encoded.
+	 */
+	@Override
+	public Header getContentEncoding() {
+		return null;
+	}
+}
@@ -0,0 +1,47 @@
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent latencies of requests to the routing server, to estimate percentiles for
+ * deciding when to send a hedged request. This class is thread-safe.
+ */
+class LatencyTracker {
+	private long[] samples;
+	private int next;
+	private int count;
+
+	/**
+	 * @param size
+	 *            Number of recent latencies kept.
+	 */
+	LatencyTracker(int size) {
+		samples = new long[size];
+	}
+
+	synchronized void record(long nanos) {
+		samples[next] = nanos;
+		next = (next + 1) % samples.length;
+		count = Math.min(count + 1, samples.length);
+	}
+
+	/**
+	 * Get a percentile of the recent latencies.
+	 * 
+	 * @param p
+	 *            The percentile, between 0 and 1.
+	 * @param minSamples
+	 *            Minimum number of latencies needed for an estimate.
+	 * @return The percentile in nanoseconds, or -1 if fewer than minSamples latencies are known.
+	 */
+	long getPercentile(double p, int minSamples) {
+		long[] sorted;
+		synchronized (this) {
+			if (count < Math.max(1, minSamples)) {
+				return -1;
+			}
+			sorted = Arrays.copyOf(samples, count);
+		}
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(p * sorted.length) - 1;
+		return sorted[Math.max(0, rank)];
+	}
+}
@@ -0,0 +1,89 @@
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A route cache held in the memory of this process. When the cache is full, the least recently
+ * used route is evicted. As every route in the cache is of the current version, changing the
+ * version simply empties the cache.
+ */
+public class LocalRouteCache implements RouteCache {
+	/**
+	 * The current version, and the cached routes in order of use. Access to both must be
+	 * synchronized on the map.
+	 */
+	private long version;
+	private Map<RouteEndpoints, byte[]> entries;
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param maxSize
+	 *            Maximum number of routes kept.
+	 */
+	public LocalRouteCache(final int maxSize) {
+		entries = new LinkedHashMap<RouteEndpoints, byte[]>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<RouteEndpoints, byte[]> eldest) {
+				if (size() > maxSize) {
+					onEviction();
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Called when a route is evicted to make room for another. Does nothing; subclasses may
+	 * override it to record evictions.
+	 */
+	protected void onEviction() {
+	}
+
+	@Override
+	public byte[] get(RouteEndpoints endpoints) {
+		synchronized (entries) {
+			return entries.get(endpoints);
+		}
+	}
+
+	@Override
+	public byte[][] getAll(List<RouteEndpoints> endpoints) {
+		byte[][] result = new byte[endpoints.size()][];
+		synchronized (entries) {
+			for (int i = 0; i < result.length; i++) {
+				result[i] = entries.get(endpoints.get(i));
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean contains(RouteEndpoints endpoints) {
+		synchronized (entries) {
+			// check without get(), so that the order of the LRU cache is not
+			// changed
+			return entries.containsKey(endpoints);
+		}
+	}
+
+	@Override
+	public void put(RouteEndpoints endpoints, byte[] encoded) {
+		synchronized (entries) {
+			entries.put(endpoints, encoded);
+		}
+	}
+
+	@Override
+	public void setVersion(long version) {
+		synchronized (entries) {
+			if (version != this.version) {
+				this.version = version;
+				entries.clear();
+			}
+		}
+	}
+}
@@ -0,0 +1,39 @@
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Snaps route endpoints to the nearest of a fixed set of nodes (for example, points of interest
+ * or junctions of the walking network), provided that it is within a maximum distance. Endpoints
+ * which are not near any node are left where they are.
+ */
+public class NearestNodeSnapPolicy implements EndpointSnapPolicy {
+	private List<LatLong> nodes;
+	private GeoPoints nodePoints;
+	private double maxDistance;
+
+	/**
+	 * Create a nearest node snap policy.
+	 * 
+	 * @param nodes
+	 *            The locations which endpoints may be snapped to.
+	 * @param maxDistance
+	 *            Maximum distance in metres which an endpoint may be moved.
+	 */
+	public NearestNodeSnapPolicy(Collection<LatLong> nodes, double maxDistance) {
+		this.nodes = new ArrayList<LatLong>(nodes);
+		this.nodePoints = new GeoPoints(this.nodes);
+		this.maxDistance = maxDistance;
+	}
+
+	@Override
+	public LatLong snap(LatLong point) {
+		// nodes within the maximum distance are close enough to measure on a plane
+		EquirectangularKernel kernel = new EquirectangularKernel(point.getLatitude());
+		int nearest = kernel.nearest(point.getLatitude(), point.getLongitude(), nodePoints);
+		if (nearest < 0 || kernel.distance(point, nodes.get(nearest)) > maxDistance) {
+			return point;
+		}
+		return nodes.get(nearest);
+	}
+}
@@ -0,0 +1,111 @@
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compact encoding for a list of waypoints, following the Google encoded polyline format (<a
+ * href="https://developers.google.com/maps/documentation/utilities/polylinealgorithm"
+ * >https://developers.google.com/maps/documentation/utilities/polylinealgorithm</a>) but with six
+ * decimal places of precision, to match the microdegree GeoPoints used by the map.
+ *
+ * Each coordinate is stored as the zig-zag encoded difference from the previous point, in 5-bit
+ * chunks offset into printable ASCII. Consecutive waypoints on a walking route are close together,
+ * so most coordinates take two to four bytes, against sixteen bytes for a pair of doubles (plus the
+ * LatLong object header). The encoded bytes never contain KeyValueStore.RESERVED_CHAR_STRING, so
+ * they can also be stored as a string.
+ */
+public class PolylineCodec {
+	/**
+	 * Number of fixed-point units per degree.
+	 */
+	private final static double PRECISION = 1e6;
+
+	/**
+	 * Added to each 5-bit chunk to move it into printable ASCII.
+	 */
+	private final static int CHAR_OFFSET = 63;
+
+	/**
+	 * Set in every chunk but the last of an encoded value.
+	 */
+	private final static int CONTINUATION_BIT = 0x20;
+
+	private PolylineCodec() {
+	}
+
+	/**
+	 * Encode waypoints.
+	 *
+	 * @param waypoints
+	 *            The waypoints to encode.
+	 * @return The encoded waypoints. Coordinates are rounded to six decimal places.
+	 */
+	public static byte[] encode(List<LatLong> waypoints) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream(waypoints.size() * 6);
+		int prevLat = 0;
+		int prevLon = 0;
+		for (LatLong ll : waypoints) {
+			int lat = (int) Math.round(ll.getLatitude() * PRECISION);
+			int lon = (int) Math.round(ll.getLongitude() * PRECISION);
+			encodeValue(lat - prevLat, out);
+			encodeValue(lon - prevLon, out);
+			prevLat = lat;
+			prevLon = lon;
+		}
+		return out.toByteArray();
+	}
+
+	/**
+	 * Decode waypoints produced by {@link #encode(List)}.
+	 *
+	 * @param encoded
+	 *            The encoded waypoints.
+	 * @return The decoded waypoints.
+	 * @throws IllegalArgumentException
+	 *             If encoded is truncated or contains bytes that were not produced by encode.
+	 */
+	public static List<LatLong> decode(byte[] encoded) {
+		List<LatLong> result = new ArrayList<LatLong>(encoded.length / 6);
+		int[] position = new int[1];
+		int lat = 0;
+		int lon = 0;
+		while (position[0] < encoded.length) {
+			lat += decodeValue(encoded, position);
+			lon += decodeValue(encoded, position);
+			result.add(new LatLong(lat / PRECISION, lon / PRECISION));
+		}
+		return result;
+	}
+
+	private static void encodeValue(int value, ByteArrayOutputStream out) {
+		// zig-zag encoding moves the sign into the lowest bit, so small negative
+		// differences stay small
+		int zigzag = (value << 1) ^ (value >> 31);
+		while ((zigzag & ~0x1f) != 0) {
+			out.write(((zigzag & 0x1f) | CONTINUATION_BIT) + CHAR_OFFSET);
+			zigzag >>>= 5;
+		}
+		out.write(zigzag + CHAR_OFFSET);
+	}
+
+	/**
+	 * Decode the value starting at position[0], and advance position[0] past it.
+	 */
+	private static int decodeValue(byte[] encoded, int[] position) {
+		int zigzag = 0;
+		int shift = 0;
+		int chunk;
+		do {
+			if (position[0] >= encoded.length || shift > 30) {
+				throw new IllegalArgumentException("Malformed encoded polyline");
+			}
+			chunk = encoded[position[0]++] - CHAR_OFFSET;
+			if (chunk < 0 || chunk > 0x3f) {
+				throw new IllegalArgumentException("Malformed encoded polyline");
+			}
+			zigzag |= (chunk & 0x1f) << shift;
+			shift += 5;
+		} while ((chunk & CONTINUATION_BIT) != 0);
+		return (zigzag >>> 1) ^ -(zigzag & 1);
+	}
+}
@@ -0,0 +1,276 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * Client for a route cache shared by many processes, such as RouteCacheServer, so that a route
+ * fetched by one app or server node is a cache hit for all the others.
+ *
+ * The cache is reached over a TCP connection with a line-based protocol. Keys are the endpoints of
+ * a route as "startLat,startLon,endLat,endLon", and values the PolylineCodec encoding of its
+ * waypoints, which is printable ASCII without spaces. Every request carries the version of the map
+ * data, and routes are only found under the version they were stored with.
+ *
+ * <pre>
+ * GET version count     followed by count keys, one per line; answered by count lines, each
+ *                       "+" and the value of the key, or "-" if it is not cached
+ * HAS version key       answered by "1" or "0", without counting as a use of the route
+ * PUT version key value answered by "OK"
+ * VERSION               answered by the current version of the map data held by the server
+ * VERSION version       sets that version; answered by "OK"
+ * </pre>
+ *
+ * The version the requests carry is set with {@link #setVersion(long)}. To move every process
+ * sharing the cache onto new map data at once, publish the new version to the server with
+ * {@link #setSharedVersion(long)}, and have each process poll {@link #getSharedVersion()} and pass
+ * changes on to its cache.
+ *
+ * The cache is only an optimisation, so requests which fail or time out are treated as misses,
+ * and stores which fail are dropped. Connections are kept open and reused. After a connection
+ * cannot be made, requests fail straight away for a while rather than each waiting for the
+ * connect timeout.
+ */
+public class RemoteRouteCache implements RouteCache {
+	private final static Logger LOG = Logger.getLogger("RemoteRouteCache");
+
+	/**
+	 * Maximum number of idle connections kept open.
+	 */
+	private final static int MAX_IDLE_CONNECTIONS = 8;
+
+	/**
+	 * Time in milliseconds after a failed connection attempt during which no other attempt is
+	 * made.
+	 */
+	private final static long CONNECT_BACKOFF = 5000;
+
+	/**
+	 * An open connection to the cache server.
+	 */
+	private static class Connection {
+		private Socket socket;
+		private BufferedReader in;
+		private Writer out;
+
+		private void close() {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+	}
+
+	private String host;
+	private int port;
+	private int timeout;
+	private volatile long version;
+
+	/**
+	 * Time before which no connection is attempted, after a failed attempt.
+	 */
+	private volatile long nextConnectTime;
+
+	/**
+	 * Connections not in use. Access must be synchronized on the list.
+	 */
+	private LinkedList<Connection> idle = new LinkedList<Connection>();
+
+	/**
+	 * Create a client. No connection is made until the cache is first used.
+	 *
+	 * @param host
+	 *            Host of the cache server.
+	 * @param port
+	 *            Port of the cache server.
+	 * @param timeout
+	 *            Timeout in milliseconds for connecting and for each response, after which the
+	 *            request is treated as a miss.
+	 */
+	public RemoteRouteCache(String host, int port, int timeout) {
+		this.host = host;
+		this.port = port;
+		this.timeout = timeout;
+	}
+
+	@Override
+	public byte[] get(RouteEndpoints endpoints) {
+		return getAll(Collections.singletonList(endpoints))[0];
+	}
+
+	@Override
+	public byte[][] getAll(List<RouteEndpoints> endpoints) {
+		byte[][] result = new byte[endpoints.size()][];
+		if (endpoints.isEmpty()) {
+			return result;
+		}
+
+		StringBuilder request = new StringBuilder();
+		request.append("GET ").append(version).append(' ').append(endpoints.size()).append('\n');
+		for (RouteEndpoints e : endpoints) {
+			request.append(getKey(e)).append('\n');
+		}
+		try {
+			List<String> response = send(request.toString(), endpoints.size());
+			for (int i = 0; i < result.length; i++) {
+				String line = response.get(i);
+				if (line.startsWith("+")) {
+					result[i] = line.substring(1).getBytes("US-ASCII");
+				}
+			}
+		} catch (IOException e) {
+			LOG.fine("Cache lookup failed: " + e.getMessage());
+		}
+		return result;
+	}
+
+	@Override
+	public boolean contains(RouteEndpoints endpoints) {
+		try {
+			return send("HAS " + version + " " + getKey(endpoints) + "\n", 1).get(0).equals("1");
+		} catch (IOException e) {
+			LOG.fine("Cache lookup failed: " + e.getMessage());
+			return false;
+		}
+	}
+
+	@Override
+	public void put(RouteEndpoints endpoints, byte[] encoded) {
+		try {
+			send("PUT " + version + " " + getKey(endpoints) + " " + new String(encoded, "US-ASCII") + "\n", 1);
+		} catch (IOException e) {
+			LOG.fine("Cache store failed: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public void setVersion(long version) {
+		this.version = version;
+	}
+
+	/**
+	 * Get the current version of the map data held by the cache server.
+	 *
+	 * @throws IOException
+	 *             If the server cannot be reached.
+	 */
+	public long getSharedVersion() throws IOException {
+		String line = send("VERSION\n", 1).get(0);
+		try {
+			return Long.parseLong(line);
+		} catch (NumberFormatException e) {
+			throw new IOException("Bad version from cache server: " + line);
+		}
+	}
+
+	/**
+	 * Set the current version of the map data held by the cache server, for every process
+	 * sharing it.
+	 *
+	 * @throws IOException
+	 *             If the server cannot be reached.
+	 */
+	public void setSharedVersion(long version) throws IOException {
+		send("VERSION " + version + "\n", 1);
+	}
+
+	/**
+	 * Close the idle connections. Connections in use are closed when they are returned.
+	 */
+	public void shutdown() {
+		synchronized (idle) {
+			for (Connection c : idle) {
+				c.close();
+			}
+			idle.clear();
+		}
+	}
+
+	/**
+	 * Send a request on an idle connection, or a new one if there is none, and read the
+	 * response.
+	 *
+	 * @param lines
+	 *            Number of lines in the response.
+	 */
+	private List<String> send(String request, int lines) throws IOException {
+		Connection connection;
+		synchronized (idle) {
+			connection = idle.poll();
+		}
+		if (connection == null) {
+			if (System.currentTimeMillis() < nextConnectTime) {
+				throw new IOException("Cache server unavailable");
+			}
+			try {
+				connection = connect();
+			} catch (IOException e) {
+				nextConnectTime = System.currentTimeMillis() + CONNECT_BACKOFF;
+				throw e;
+			}
+		}
+
+		List<String> response = new ArrayList<String>(lines);
+		try {
+			connection.out.write(request);
+			connection.out.flush();
+			for (int i = 0; i < lines; i++) {
+				String line = connection.in.readLine();
+				if (line == null) {
+					throw new IOException("Connection closed by cache server");
+				}
+				if (line.startsWith("ERR")) {
+					throw new IOException("Cache server error: " + line);
+				}
+				response.add(line);
+			}
+		} catch (IOException e) {
+			// the connection may be part way through a response, so it
+			// cannot be reused
+			connection.close();
+			throw e;
+		}
+
+		synchronized (idle) {
+			if (idle.size() < MAX_IDLE_CONNECTIONS) {
+				idle.add(connection);
+				connection = null;
+			}
+		}
+		if (connection != null) {
+			connection.close();
+		}
+		return response;
+	}
+
+	private Connection connect() throws IOException {
+		Connection connection = new Connection();
+		connection.socket = new Socket();
+		try {
+			connection.socket.setTcpNoDelay(true);
+			connection.socket.setSoTimeout(timeout);
+			connection.socket.connect(new InetSocketAddress(host, port), timeout);
+			connection.in = new BufferedReader(new InputStreamReader(connection.socket.getInputStream(),
+					"US-ASCII"));
+			connection.out = new OutputStreamWriter(connection.socket.getOutputStream(), "US-ASCII");
+		} catch (IOException e) {
+			connection.close();
+			throw e;
+		}
+		return connection;
+	}
+
+	private static String getKey(RouteEndpoints endpoints) {
+		return endpoints.getStart().getLatitude() + "," + endpoints.getStart().getLongitude() + ","
+				+ endpoints.getEnd().getLatitude() + "," + endpoints.getEnd().getLongitude();
+	}
+}
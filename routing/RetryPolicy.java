@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.util.Random;
+
+import org.apache.http.client.HttpResponseException;
+
+/**
+ * Decides whether, and after how long, a failed request to the routing server is retried.
+ * Delays grow exponentially with each attempt, and are chosen at random up to that bound ("full
+ * jitter"), so that clients which failed together do not retry together.
+ */
+public class RetryPolicy {
+	private int maxAttempts;
+	private long baseDelay;
+	private long maxDelay;
+	private Random random = new Random();
+
+	/**
+	 * Create a retry policy.
+	 * 
+	 * @param maxAttempts
+	 *            Maximum number of attempts, including the first. 1 disables retries.
+	 * @param baseDelay
+	 *            Upper bound in milliseconds of the delay before the first retry.
+	 * @param maxDelay
+	 *            Upper bound in milliseconds of the delay before any retry.
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelay, long maxDelay) {
+		this.maxAttempts = maxAttempts;
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Decide whether a failure may succeed if retried. Errors reported by the server for the
+	 * request itself (4xx statuses) are not retried; other I/O errors, including 5xx statuses, are.
+	 * 
+	 * @param e
+	 *            The error, or null if the server's response could not be used.
+	 */
+	public boolean isRetryable(IOException e) {
+		if (e instanceof HttpResponseException) {
+			return ((HttpResponseException) e).getStatusCode() >= 500;
+		}
+		return true;
+	}
+
+	/**
+	 * Get the delay before a retry.
+	 * 
+	 * @param attempt
+	 *            The number of attempts made so far (1 after the first failure).
+	 * @return Delay in milliseconds, between 0 and min(maxDelay, baseDelay * 2^(attempt - 1)).
+	 */
+	public long getDelay(int attempt) {
+		long bound = baseDelay << Math.min(attempt - 1, 30);
+		if (bound <= 0 || bound > maxDelay) {
+			bound = maxDelay;
+		}
+		synchronized (random) {
+			return (long) (random.nextDouble() * bound);
+		}
+	}
+}
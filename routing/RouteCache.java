@@ -0,0 +1,46 @@
+import java.util.List;
+
+/**
+ * A cache of routes by their endpoints, consulted by RoutingService before it requests a route
+ * from the server (cache-aside). Routes are stored encoded with PolylineCodec.
+ *
+ * Every route is stamped with the version of the map data it was calculated from. When the map
+ * data changes, {@link #setVersion(long)} is called with the new version, and routes stamped with
+ * any other version are no longer returned. Implementations must be thread-safe.
+ */
+public interface RouteCache {
+	/**
+	 * Get a cached route.
+	 *
+	 * @return The encoded waypoints of the route, or null if it is not cached under the current
+	 *         version.
+	 */
+	byte[] get(RouteEndpoints endpoints);
+
+	/**
+	 * Get several cached routes at once, such as all the legs of a tour, so that a remote cache
+	 * can answer them in one round trip.
+	 *
+	 * @return The encoded waypoints of each route, in the same order as the endpoints, with null
+	 *         for routes which are not cached.
+	 */
+	byte[][] getAll(List<RouteEndpoints> endpoints);
+
+	/**
+	 * Indicates whether a route is cached under the current version. Unlike {@link #get}, this
+	 * does not count as a use of the route.
+	 */
+	boolean contains(RouteEndpoints endpoints);
+
+	/**
+	 * Cache a route under the current version, replacing any route cached between the same
+	 * endpoints.
+	 */
+	void put(RouteEndpoints endpoints, byte[] encoded);
+
+	/**
+	 * Set the version of the map data. Routes cached under another version are treated as
+	 * missing from then on.
+	 */
+	void setVersion(long version);
+}
@@ -60,6 +60,13 @@ public class RouteEndpoints {
 	public LatLong getEnd() {
 		return end;
 	}
+
+	/**
+	 * Get the endpoints of the route travelled in the opposite direction.
+	 */
+	public RouteEndpoints getReversed() {
+		return new RouteEndpoints(end, start);
+	}
 	
 	
 }
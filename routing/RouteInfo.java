@@ -1,15 +1,251 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
 /**
  * Information on a route returned by an instance of RoutingService.
+ *
+ * A route can be created from waypoints encoded with {@link PolylineCodec}, in which case the
+ * waypoints are only decoded the first time they are needed.
+ *
+ * A route can also be drawn at a reduced level of detail. The first time a simplified route is
+ * requested, every waypoint is given a Douglas-Peucker significance: the largest tolerance (in
+ * metres) at which the waypoint would still be kept. Simplifying to any tolerance is then a single
+ * filtering pass over the waypoints, and the result for each zoom level is cached.
  */
 public class RouteInfo {
+	/**
+	 * Ground resolution in metres per pixel at zoom level 0 on the equator, for 256 pixel tiles.
+	 */
+	private final static double METRES_PER_PIXEL_AT_ZOOM_0 = 156543.03392;
+
+	/**
+	 * The waypoints of the route, or null if they have not yet been decoded from
+	 * encodedWaypoints. Access must be synchronized on this object.
+	 */
 	private List<LatLong> waypoints;
 
+	/**
+	 * The encoded waypoints of the route, or null if they have not yet been encoded.
+	 * Access must be synchronized on this object.
+	 */
+	private byte[] encodedWaypoints;
+
+	/**
+	 * Douglas-Peucker significance of each waypoint, or null if not yet computed. Access must be
+	 * synchronized on this object.
+	 */
+	private double[] significance;
+
+	/**
+	 * Simplified waypoints by zoom level. Access must be synchronized on this object.
+	 */
+	private Map<Integer, List<LatLong>> waypointsByZoom = new HashMap<Integer, List<LatLong>>();
+
+	/**
+	 * Whether this route is a stand-in for a route the routing service could not provide.
+	 */
+	private boolean approximate;
+
 	public RouteInfo(List<LatLong> waypoints) {
+		this(waypoints, false);
+	}
+
+	/**
+	 * Create a route.
+	 * 
+	 * @param waypoints
+	 *            The waypoints of the route.
+	 * @param approximate
+	 *            true if the route is a stand-in (such as a straight line) for a route the
+	 *            routing service could not provide.
+	 */
+	public RouteInfo(List<LatLong> waypoints, boolean approximate) {
 		this.waypoints = waypoints;
+		this.approximate = approximate;
 	}
 
-	public List<LatLong> getWaypoints() {
+	/**
+	 * Create a route from waypoints encoded with {@link PolylineCodec#encode(List)}.
+	 */
+	public RouteInfo(byte[] encodedWaypoints) {
+		this.encodedWaypoints = encodedWaypoints;
+	}
+
+	/**
+	 * Indicates whether this route is a stand-in for a route the routing service could not
+	 * provide. An approximate route is not cached.
+	 */
+	public boolean isApproximate() {
+		return approximate;
+	}
+
+	public synchronized List<LatLong> getWaypoints() {
+		if (waypoints == null) {
+			waypoints = PolylineCodec.decode(encodedWaypoints);
+		}
 		return waypoints;
 	}
-	
+
+	/**
+	 * Get this route travelled in the opposite direction.
+	 */
+	public RouteInfo getReversed() {
+		List<LatLong> reversed = new ArrayList<LatLong>(getWaypoints());
+		Collections.reverse(reversed);
+		return new RouteInfo(reversed, approximate);
+	}
+
+	/**
+	 * Get the waypoints of this route encoded with {@link PolylineCodec#encode(List)}.
+	 */
+	public synchronized byte[] getEncodedWaypoints() {
+		if (encodedWaypoints == null) {
+			encodedWaypoints = PolylineCodec.encode(waypoints);
+		}
+		return encodedWaypoints;
+	}
+
+	/**
+	 * Get the waypoints of this route, dropping those which would not move the drawn line by more
+	 * than the given tolerance.
+	 *
+	 * @param tolerance
+	 *            Maximum distance in metres between the simplified route and any dropped waypoint.
+	 * @return The first and last waypoints, and every waypoint whose significance exceeds tolerance,
+	 *         in route order.
+	 */
+	public synchronized List<LatLong> getWaypoints(double tolerance) {
+		List<LatLong> waypoints = getWaypoints();
+		if (waypoints.size() < 3 || tolerance <= 0) {
+			return waypoints;
+		}
+		if (significance == null) {
+			significance = computeSignificance(waypoints);
+		}
+
+		List<LatLong> result = new ArrayList<LatLong>();
+		for (int i = 0; i < significance.length; i++) {
+			if (significance[i] > tolerance) {
+				result.add(waypoints.get(i));
+			}
+		}
+		return Collections.unmodifiableList(result);
+	}
+
+	/**
+	 * Get the waypoints of this route at the level of detail suitable for drawing on a map at the
+	 * given zoom level. Waypoints closer than one pixel to the simplified line are dropped.
+	 *
+	 * @param zoomLevel
+	 *            Zoom level of the map, as returned by MapView.getZoomLevel().
+	 * @return The simplified waypoints, in route order.
+	 */
+	public synchronized List<LatLong> getWaypointsForZoom(int zoomLevel) {
+		List<LatLong> waypoints = getWaypoints();
+		if (waypoints.isEmpty()) {
+			return waypoints;
+		}
+		List<LatLong> result = waypointsByZoom.get(zoomLevel);
+		if (result == null) {
+			double latitude = waypoints.get(0).getLatitude();
+			double metresPerPixel = METRES_PER_PIXEL_AT_ZOOM_0
+					* Math.cos(Math.toRadians(latitude)) / (1 << zoomLevel);
+			result = getWaypoints(metresPerPixel);
+			waypointsByZoom.put(zoomLevel, result);
+		}
+		return result;
+	}
+
+	/**
+	 * Compute the Douglas-Peucker significance of each point. The end points are always kept, so
+	 * they are given infinite significance. The significance of an interior point is its distance
+	 * from the chord it splits, capped by the significance of the point that created that chord, so
+	 * that a point is never kept without the points that lead to it.
+	 */
+	private static double[] computeSignificance(List<LatLong> points) {
+		int n = points.size();
+		double[] x = new double[n];
+		double[] y = new double[n];
+		project(points, x, y);
+
+		double[] result = new double[n];
+		result[0] = Double.POSITIVE_INFINITY;
+		result[n - 1] = Double.POSITIVE_INFINITY;
+
+		// Each stack entry is a chord (first, last) with the significance of its parent split.
+		int[] firsts = new int[n];
+		int[] lasts = new int[n];
+		double[] caps = new double[n];
+		int top = 0;
+		firsts[top] = 0;
+		lasts[top] = n - 1;
+		caps[top] = Double.POSITIVE_INFINITY;
+		top++;
+
+		while (top > 0) {
+			top--;
+			int first = firsts[top];
+			int last = lasts[top];
+			double cap = caps[top];
+			if (last - first < 2) {
+				continue;
+			}
+
+			int split = first + 1;
+			double maxDistance = -1;
+			for (int i = first + 1; i < last; i++) {
+				double d = distanceToSegment(x[i], y[i], x[first], y[first], x[last], y[last]);
+				if (d > maxDistance) {
+					maxDistance = d;
+					split = i;
+				}
+			}
+
+			double sig = Math.min(maxDistance, cap);
+			result[split] = sig;
+			firsts[top] = first;
+			lasts[top] = split;
+			caps[top] = sig;
+			top++;
+			firsts[top] = split;
+			lasts[top] = last;
+			caps[top] = sig;
+			top++;
+		}
+		return result;
+	}
+
+	/**
+	 * Project points onto a plane tangent to the earth at the first point, in metres.
+	 */
+	private static void project(List<LatLong> points, double[] x, double[] y) {
+		EquirectangularKernel plane = new EquirectangularKernel(points.get(0).getLatitude());
+		int i = 0;
+		for (LatLong ll : points) {
+			x[i] = plane.getX(ll.getLongitude());
+			y[i] = plane.getY(ll.getLatitude());
+			i++;
+		}
+	}
+
+	/**
+	 * Distance from point p to the line segment from a to b.
+	 */
+	private static double distanceToSegment(double px, double py, double ax, double ay, double bx,
+			double by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double lengthSquared = dx * dx + dy * dy;
+		double t = 0;
+		if (lengthSquared > 0) {
+			t = ((px - ax) * dx + (py - ay) * dy) / lengthSquared;
+			t = Math.max(0, Math.min(1, t));
+		}
+		double ex = px - (ax + t * dx);
+		double ey = py - (ay + t * dy);
+		return Math.sqrt(ex * ex + ey * ey);
+	}
 }
@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import android.util.Log;
+
+/**
+ * Fills the route cache of a RoutingService with the routes between pairs of points, such as the
+ * points of interest in a POIRegistry, so that tours made of those points can be drawn without
+ * waiting for the routing server. Either every pair is warmed, or only the pairs joining each point
+ * to its nearest neighbours.
+ *
+ * Routes which are already cached (including, with symmetric routes, those cached in the opposite
+ * direction) are skipped. Requests to the server are spaced out to respect a rate limit, and
+ * warming stops after several consecutive failures, or when the thread running it is interrupted.
+ */
+public class RouteMatrixWarmer implements Runnable {
+	private final static String LOG_TAG = "RouteMatrixWarmer";
+
+	/**
+	 * Receives the progress of a warmer. Called on the thread running the warmer.
+	 */
+	public interface ProgressListener {
+		/**
+		 * Called after each pair of points has been warmed or skipped.
+		 *
+		 * @param done
+		 *            Number of pairs processed so far.
+		 * @param total
+		 *            Number of pairs to process.
+		 * @param fetched
+		 *            Number of routes requested from the server so far.
+		 */
+		void onProgress(int done, int total, int fetched);
+
+		/**
+		 * Called once when warming ends.
+		 *
+		 * @param completed
+		 *            true if every pair was processed, false if warming was interrupted or stopped
+		 *            after repeated failures.
+		 */
+		void onFinished(boolean completed);
+	}
+
+	private RoutingService routingService;
+	private List<LatLong> points;
+	private GeoPoints geoPoints;
+	private int nearestNeighbours = 0;
+	private long minRequestInterval = 1000;
+	private int maxConsecutiveFailures = 3;
+	private ProgressListener progressListener;
+
+	/**
+	 * Create a warmer.
+	 *
+	 * @param routingService
+	 *            The service whose route cache is filled.
+	 * @param points
+	 *            The points between which routes are warmed.
+	 */
+	public RouteMatrixWarmer(RoutingService routingService, List<LatLong> points) {
+		this.routingService = routingService;
+		this.points = new ArrayList<LatLong>(points);
+		this.geoPoints = new GeoPoints(this.points);
+	}
+
+	/**
+	 * Only warm the routes from each point to its k nearest neighbours (by straight-line distance),
+	 * in both directions. 0, the default, warms every pair.
+	 */
+	public void setNearestNeighbours(int k) {
+		this.nearestNeighbours = k;
+	}
+
+	/**
+	 * Set the maximum rate of requests to the routing server. The default is one per second.
+	 */
+	public void setRequestsPerSecond(double requestsPerSecond) {
+		this.minRequestInterval = (long) (1000 / requestsPerSecond);
+	}
+
+	/**
+	 * Set the number of consecutive failed requests after which warming stops. The default is 3.
+	 */
+	public void setMaxConsecutiveFailures(int maxConsecutiveFailures) {
+		this.maxConsecutiveFailures = maxConsecutiveFailures;
+	}
+
+	public void setProgressListener(ProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+
+	/**
+	 * Get the pairs of points to warm, as pairs of indices into points.
+	 */
+	List<int[]> getPairs() {
+		List<int[]> pairs = new ArrayList<int[]>();
+		int n = points.size();
+		if (nearestNeighbours <= 0 || nearestNeighbours >= n - 1) {
+			for (int i = 0; i < n; i++) {
+				for (int j = 0; j < n; j++) {
+					if (i != j) {
+						pairs.add(new int[] { i, j });
+					}
+				}
+			}
+			return pairs;
+		}
+
+		boolean[][] chosen = new boolean[n][n];
+		for (int i = 0; i < n; i++) {
+			for (int j : getNearest(i)) {
+				if (!chosen[i][j]) {
+					chosen[i][j] = true;
+					pairs.add(new int[] { i, j });
+				}
+				if (!chosen[j][i]) {
+					chosen[j][i] = true;
+					pairs.add(new int[] { j, i });
+				}
+			}
+		}
+		return pairs;
+	}
+
+	/**
+	 * Get the indices of the nearestNeighbours points closest to the point at index i.
+	 */
+	private List<Integer> getNearest(int i) {
+		List<Integer> others = new ArrayList<Integer>();
+		for (int j = 0; j < points.size(); j++) {
+			if (j != i) {
+				others.add(j);
+			}
+		}
+		LatLong point = points.get(i);
+		final double[] distances = new double[points.size()];
+		new EquirectangularKernel(point.getLatitude()).distances(point.getLatitude(),
+				point.getLongitude(), geoPoints, distances);
+		Collections.sort(others, new Comparator<Integer>() {
+			@Override
+			public int compare(Integer a, Integer b) {
+				return Double.compare(distances[a], distances[b]);
+			}
+		});
+		return others.subList(0, nearestNeighbours);
+	}
+
+	@Override
+	public void run() {
+		List<int[]> pairs = getPairs();
+		int done = 0;
+		int fetched = 0;
+		int failures = 0;
+		long lastRequest = 0;
+		boolean completed = false;
+
+		try {
+			for (int[] pair : pairs) {
+				LatLong start = points.get(pair[0]);
+				LatLong end = points.get(pair[1]);
+				if (!routingService.isRouteCached(start, end)) {
+					long wait = lastRequest + minRequestInterval - System.currentTimeMillis();
+					if (wait > 0) {
+						Thread.sleep(wait);
+					}
+					lastRequest = System.currentTimeMillis();
+					fetched++;
+
+					RouteInfo route = null;
+					try {
+						route = routingService.getRoute(start, end, true);
+					} catch (IOException e) {
+						Log.d(LOG_TAG, "Error warming route");
+					}
+					// an approximate route is a fallback for a failed request
+					if (route == null || route.isApproximate()) {
+						if (++failures >= maxConsecutiveFailures) {
+							Log.d(LOG_TAG, "Stopped after " + failures + " consecutive failures");
+							return;
+						}
+					} else {
+						failures = 0;
+					}
+				}
+
+				done++;
+				if (progressListener != null) {
+					progressListener.onProgress(done, pairs.size(), fetched);
+				}
+				if (Thread.currentThread().isInterrupted()) {
+					return;
+				}
+			}
+			completed = true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} finally {
+			if (progressListener != null) {
+				progressListener.onFinished(completed);
+			}
+		}
+	}
+}
@@ -0,0 +1,67 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A trace covering a sequence of calls to RoutingService made by one thread (for example, the
+ * retrieval of all of the legs of a tour). While a trace is open, each call records a span under
+ * the trace's id. Obtain a trace from {@link RoutingService#startTrace(String)} and close it with
+ * {@link #end()} on the same thread.
+ */
+public class RouteTrace {
+	/**
+	 * Trace returned when no metrics reporter is set. Records nothing.
+	 */
+	final static RouteTrace DISABLED = new RouteTrace(null, null);
+
+	private final static ThreadLocal<RouteTrace> current = new ThreadLocal<RouteTrace>();
+	private final static AtomicLong nextId = new AtomicLong();
+
+	private String id;
+	private String name;
+	private RoutingMetricsReporter reporter;
+	private long start;
+
+	private RouteTrace(String name, RoutingMetricsReporter reporter) {
+		this.name = name;
+		this.reporter = reporter;
+	}
+
+	/**
+	 * Open a trace on the calling thread.
+	 */
+	static RouteTrace start(String name, RoutingMetricsReporter reporter) {
+		RouteTrace trace = new RouteTrace(name, reporter);
+		trace.id = name + "-" + nextId.incrementAndGet();
+		trace.start = System.nanoTime();
+		current.set(trace);
+		return trace;
+	}
+
+	/**
+	 * Get the trace open on the calling thread.
+	 * 
+	 * @return The open trace, or null if there is none.
+	 */
+	static RouteTrace current() {
+		return current.get();
+	}
+
+	/**
+	 * Record a span of this trace.
+	 */
+	void recordSpan(String spanName, long spanStart) {
+		reporter.recordSpan(id, spanName, spanStart, System.nanoTime() - spanStart);
+	}
+
+	/**
+	 * Close this trace, recording a span covering the whole trace.
+	 */
+	public void end() {
+		if (reporter == null) {
+			return;
+		}
+		if (current.get() == this) {
+			current.remove();
+		}
+		recordSpan(name, start);
+	}
+}
@@ -0,0 +1,145 @@
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks the progress of a user along a route. Each new location of the user is projected onto the
+ * route; while the user stays within a corridor around the route, the part of the route still to be
+ * walked can be drawn without asking the routing service for a new route. This class is
+ * thread-safe.
+ */
+public class RouteTracker {
+	/**
+	 * Distance in metres along the route, from the start of the segment on which the user was last
+	 * found, within which the user is looked for. Where a route doubles back on itself, this keeps
+	 * the user on the part they are walking rather than a later part which passes nearby.
+	 */
+	private final static double LOOKAHEAD = 200;
+
+	/**
+	 * Half the width of the corridor, in metres.
+	 */
+	private double corridorWidth;
+
+	/**
+	 * The route being tracked, or null if there is none.
+	 */
+	private List<LatLong> path;
+
+	/**
+	 * The location the route leads to.
+	 */
+	private LatLong destination;
+
+	/**
+	 * Index of the segment of path on which the user was last found. Segments before it have been
+	 * walked and are not searched again.
+	 */
+	private int segment;
+
+	/**
+	 * Create a route tracker.
+	 *
+	 * @param corridorWidth
+	 *            Maximum distance in metres a user may stray from the route before they are
+	 *            considered to have left it.
+	 */
+	public RouteTracker(double corridorWidth) {
+		this.corridorWidth = corridorWidth;
+	}
+
+	/**
+	 * Start tracking a route.
+	 *
+	 * @param path
+	 *            The route, from the user's location at the time the route was requested to
+	 *            destination.
+	 * @param destination
+	 *            The location the route leads to.
+	 */
+	public synchronized void setRoute(List<LatLong> path, LatLong destination) {
+		this.path = new ArrayList<LatLong>(path);
+		this.destination = destination;
+		this.segment = 0;
+	}
+
+	/**
+	 * Stop tracking the current route.
+	 */
+	public synchronized void clear() {
+		path = null;
+		destination = null;
+	}
+
+	/**
+	 * Get the location that the tracked route leads to.
+	 *
+	 * @return The destination, or null if no route is being tracked.
+	 */
+	public synchronized LatLong getDestination() {
+		return destination;
+	}
+
+	/**
+	 * Update the user's location.
+	 *
+	 * @param location
+	 *            The user's current location.
+	 * @return The part of the route still to be walked, starting at the user's location projected
+	 *         onto the route, or null if no route is being tracked or the user has left the
+	 *         corridor around the route. Once null has been returned for a route, the route must be
+	 *         replaced with {@link #setRoute(List, LatLong)}.
+	 */
+	public synchronized List<LatLong> update(LatLong location) {
+		if (path == null || path.size() < 2) {
+			return null;
+		}
+
+		// work in metres on a plane tangent to the earth at the user's location
+		EquirectangularKernel plane = new EquirectangularKernel(location.getLatitude());
+		double x = plane.getX(location.getLongitude());
+		double y = plane.getY(location.getLatitude());
+		double bestDistance = Double.MAX_VALUE;
+		int bestSegment = -1;
+		double bestT = 0;
+
+		double ahead = 0;
+		for (int i = segment; i < path.size() - 1 && ahead <= LOOKAHEAD; i++) {
+			LatLong a = path.get(i);
+			LatLong b = path.get(i + 1);
+			double ax = plane.getX(a.getLongitude()) - x;
+			double ay = plane.getY(a.getLatitude()) - y;
+			double dx = plane.getX(b.getLongitude()) - x - ax;
+			double dy = plane.getY(b.getLatitude()) - y - ay;
+
+			// the user is at the origin, so the projection is at -a along the segment
+			double lengthSquared = dx * dx + dy * dy;
+			ahead += Math.sqrt(lengthSquared);
+			double t = 0;
+			if (lengthSquared > 0) {
+				t = Math.max(0, Math.min(1, -(ax * dx + ay * dy) / lengthSquared));
+			}
+			double ex = ax + t * dx;
+			double ey = ay + t * dy;
+			double distance = Math.sqrt(ex * ex + ey * ey);
+			if (distance < bestDistance) {
+				bestDistance = distance;
+				bestSegment = i;
+				bestT = t;
+			}
+		}
+
+		if (bestDistance > corridorWidth) {
+			clear();
+			return null;
+		}
+
+		segment = bestSegment;
+		LatLong a = path.get(bestSegment);
+		LatLong b = path.get(bestSegment + 1);
+		List<LatLong> remaining = new ArrayList<LatLong>(path.size() - bestSegment);
+		remaining.add(new LatLong(a.getLatitude() + bestT * (b.getLatitude() - a.getLatitude()),
+				a.getLongitude() + bestT * (b.getLongitude() - a.getLongitude())));
+		remaining.addAll(path.subList(bestSegment + 1, path.size()));
+		return remaining;
+	}
+}
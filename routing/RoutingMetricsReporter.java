@@ -0,0 +1,79 @@
+/**
+ * Receives metrics and trace spans from RoutingService. Implementations must be thread-safe and
+ * should return quickly, as they are called on the threads requesting routes.
+ * 
+ * Metric names are given by the constants of this interface. Times are in nanoseconds.
+ */
+public interface RoutingMetricsReporter {
+	/** Counter: a route was served from the cache */
+	public static final String CACHE_HIT = "cache.hit";
+	/** Counter: a route was not in the cache, or the cache was bypassed */
+	public static final String CACHE_MISS = "cache.miss";
+	/** Counter: a route was evicted from the cache to make room for another */
+	public static final String CACHE_EVICTION = "cache.eviction";
+	/** Counter: directions were served from the cache */
+	public static final String DIRECTIONS_CACHE_HIT = "directions.cache.hit";
+	/** Counter: directions were not in the cache */
+	public static final String DIRECTIONS_CACHE_MISS = "directions.cache.miss";
+	/** Counter: directions were requested in the background before they were needed */
+	public static final String DIRECTIONS_PREFETCH = "directions.prefetch";
+
+	/** Time: opening a connection to the routing server */
+	public static final String UPSTREAM_CONNECT = "upstream.connect";
+	/** Time: from sending a request until the response headers arrive (includes any connect) */
+	public static final String UPSTREAM_FIRST_BYTE = "upstream.firstByte";
+	/** Time: reading the response body */
+	public static final String UPSTREAM_READ = "upstream.read";
+	/** Time: parsing the response body */
+	public static final String UPSTREAM_PARSE = "upstream.parse";
+
+	/** Value: size of a response body, in characters */
+	public static final String RESPONSE_SIZE = "response.size";
+	/** Value: number of waypoints in a route returned by the server */
+	public static final String ROUTE_WAYPOINTS = "route.waypoints";
+
+	/** Counter: a failed request to the server was retried */
+	public static final String UPSTREAM_RETRY = "upstream.retry";
+	/** Counter: a hedged duplicate request was sent because the first was slow */
+	public static final String UPSTREAM_HEDGE = "upstream.hedge";
+	/** Counter: a request was not sent because the circuit breaker was open */
+	public static final String CIRCUIT_OPEN = "circuit.open";
+	/** Counter: a cached or straight-line route was returned because the server failed */
+	public static final String ROUTE_FALLBACK = "route.fallback";
+
+	/** Counter: a request URI could not be built */
+	public static final String ERROR_URI_SYNTAX = "error.uriSyntax";
+	/** Counter: a response could not be parsed */
+	public static final String ERROR_JSON = "error.json";
+	/** Counter: a request failed with an I/O error, including error statuses from the server */
+	public static final String ERROR_IO = "error.io";
+
+	/**
+	 * Increment a counter by one.
+	 */
+	void count(String name);
+
+	/**
+	 * Record the duration of an operation.
+	 */
+	void recordTime(String name, long nanos);
+
+	/**
+	 * Record a value, such as a size.
+	 */
+	void recordValue(String name, long value);
+
+	/**
+	 * Record a span of a trace.
+	 * 
+	 * @param traceId
+	 *            Identifies the trace (such as the retrieval of one tour) the span belongs to.
+	 * @param name
+	 *            The operation the span covers.
+	 * @param startNanos
+	 *            Start of the span, from System.nanoTime().
+	 * @param durationNanos
+	 *            Duration of the span.
+	 */
+	void recordSpan(String traceId, String name, long startNanos, long durationNanos);
+}
@@ -1,30 +1,62 @@
 import java.io.IOException; 
+import java.io.InputStreamReader;
+import java.io.InterruptedIOException;
+import java.io.Reader;
+import java.net.InetAddress;
+import java.net.Socket;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
 
+import org.apache.http.Header;
+import org.apache.http.HeaderElement;
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpRequestInterceptor;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpResponseInterceptor;
 import org.apache.http.HttpVersion;
+import org.apache.http.StatusLine;
 import org.apache.http.client.HttpClient;
-import org.apache.http.client.ResponseHandler;
+import org.apache.http.client.HttpResponseException;
 import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
+import org.apache.http.conn.params.ConnManagerParams;
+import org.apache.http.conn.params.ConnPerRouteBean;
 import org.apache.http.conn.scheme.PlainSocketFactory;
 import org.apache.http.conn.scheme.Scheme;
 import org.apache.http.conn.scheme.SchemeRegistry;
-import org.apache.http.impl.client.BasicResponseHandler;
+import org.apache.http.conn.scheme.SocketFactory;
 import org.apache.http.impl.client.DefaultHttpClient;
 import org.apache.http.impl.conn.tsccm.ThreadSafeClientConnManager;
 import org.apache.http.params.BasicHttpParams;
+import org.apache.http.params.HttpConnectionParams;
 import org.apache.http.params.HttpParams;
 import org.apache.http.params.HttpProtocolParams;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.json.JSONTokener;
 
-import android.util.Log;
-
 /**
  * Wrapper around a service which calculates routes between geographic locations. This class 
  * may be called concurrently from multiple threads -- it is thread-safe.
@@ -34,36 +66,395 @@ import android.util.Log;
  * >http://wiki.openstreetmap.org/wiki/YOURS#Routing_API</a>).
  */
 public class RoutingService {
-	private final static String LOG_TAG = "RoutingService";
+	/**
+	 * Logs through java.util.logging rather than android.util.Log, so that the class also runs
+	 * on a plain JVM, as in TourServer.
+	 */
+	private final static Logger LOG = Logger.getLogger("RoutingService");
+
+	/**
+	 * Receives the legs of a tour from
+	 * {@link RoutingService#getRoutes(List, boolean, LegListener)} as they
+	 * become available.
+	 */
+	public interface LegListener {
+		/**
+		 * Called once for each leg which was retrieved, on the thread which
+		 * called getRoutes.
+		 * 
+		 * @param index
+		 *            Index of the leg in the tour.
+		 * @param route
+		 *            The route of the leg, or null if the server's response
+		 *            could not be used.
+		 */
+		void onLeg(int index, RouteInfo route);
+	}
+
+	/**
+	 * Base URL of the YOURS server used unless another is given.
+	 */
+	public final static String DEFAULT_BASE_URL = "http://yours.cs.ubc.ca/yours";
+
+	/**
+	 * Base URL of the YOURS server, without a trailing slash.
+	 */
+	private String baseUrl;
+
+	/**
+	 * Base URL of a server offering the OSRM route API, used to route a whole
+	 * tour in one request, or null if there is none.
+	 */
+	private volatile String batchBaseUrl;
+
+	/**
+	 * Maximum number of routes kept in the cache.
+	 */
+	private final static int ROUTE_CACHE_SIZE = 2000;
+
+	/**
+	 * Caches routes retrieved by their endpoints. Waypoints are stored encoded
+	 * with PolylineCodec and only decoded when a cached route is used. By
+	 * default, routes are cached in this process only, and when the cache is
+	 * full the least recently used route is evicted.
+	 */
+	private volatile RouteCache routeCache = new LocalRouteCache(ROUTE_CACHE_SIZE) {
+		@Override
+		protected void onEviction() {
+			count(RoutingMetricsReporter.CACHE_EVICTION);
+		}
+	};
+
+	/**
+	 * Maximum number of directions kept in the cache.
+	 */
+	private final static int DIRECTIONS_CACHE_SIZE = 200;
+
+	/**
+	 * Caches directions retrieved by their endpoints, with line breaks already
+	 * replaced. When the cache is full, the least recently used directions are
+	 * evicted. Access to this map must be synchronized on the map.
+	 */
+	private Map<RouteEndpoints, String> directionsCache = new LinkedHashMap<RouteEndpoints, String>(16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<RouteEndpoints, String> eldest) {
+			return size() > DIRECTIONS_CACHE_SIZE;
+		}
+	};
+
+	/**
+	 * Directions prefetches which have been queued but may not have run yet.
+	 * Access must be synchronized on this object.
+	 */
+	private List<Future<?>> pendingPrefetches = new ArrayList<Future<?>>();
+
+	/**
+	 * Runs directions prefetches, one at a time. Created when first needed;
+	 * access must be synchronized on this object.
+	 */
+	private ExecutorService prefetchExecutor;
+
+	/**
+	 * Percentile of recent upstream latencies after which a hedged request is
+	 * sent, and the number of latencies needed before hedging starts.
+	 */
+	private final static double HEDGE_PERCENTILE = 0.95;
+	private final static int HEDGE_MIN_SAMPLES = 20;
+
+	/**
+	 * Policy for retrying failed requests to the server, or null to never retry.
+	 */
+	private volatile RetryPolicy retryPolicy = new RetryPolicy(3, 250, 4000);
+
+	/**
+	 * Breaker which stops requests to a failing server, or null to always send
+	 * requests.
+	 */
+	private volatile CircuitBreaker circuitBreaker = new CircuitBreaker(5, 30000);
 
 	/**
-	 * Caches routes retrieved by their endpoints. Access to this map must be
-	 * synchronized on the map.
+	 * Indicates whether a duplicate request is sent when a request to the
+	 * server is slower than most recent requests.
 	 */
-	private Map<RouteEndpoints, RouteInfo> routeCache = new HashMap<RouteEndpoints, RouteInfo>();
+	private volatile boolean hedgedRequests = false;
+
+	/**
+	 * Indicates whether a straight line is returned when no route can be
+	 * obtained from the server or the cache.
+	 */
+	private volatile boolean straightLineFallback = false;
+
+	/**
+	 * Latencies of recent successful requests to the server.
+	 */
+	private LatencyTracker latencyTracker = new LatencyTracker(128);
+
+	/**
+	 * The task run by each thread of the hedge and leg executors, which the
+	 * requests it sends are registered with so that cancelling the task can
+	 * abort them.
+	 */
+	private final ThreadLocal<AbortableTask<?>> currentTask = new ThreadLocal<AbortableTask<?>>();
+
+	/**
+	 * Runs hedged requests. Created when first needed; access must be
+	 * synchronized on this object.
+	 */
+	private ExecutorService hedgeExecutor;
+
+	/**
+	 * Runs the requests for the legs of a tour concurrently, with no more
+	 * threads than there are connections per route. Created when first
+	 * needed; access must be synchronized on this object.
+	 */
+	private ExecutorService legExecutor;
+
+	/**
+	 * Receives metrics and trace spans, or null if metrics are disabled.
+	 */
+	private volatile RoutingMetricsReporter metricsReporter;
+
+	/**
+	 * Indicates whether a route may be served from the cached route between the
+	 * same endpoints in the opposite direction.
+	 */
+	private volatile boolean symmetricRoutes = false;
+
+	/**
+	 * Policy applied by {@link #snapLocation(LatLong)}, or null if locations
+	 * are used as given.
+	 */
+	private volatile EndpointSnapPolicy snapPolicy;
 
 	/**
 	 * Client for making HTTP requests to the API of the service.
 	 */
 	private HttpClient client;
 
+	/**
+	 * Settings for the connections made by client.
+	 */
+	private RoutingTransportConfig transportConfig;
+
 	public RoutingService() {
+		this(DEFAULT_BASE_URL);
+	}
+
+	/**
+	 * Create a routing service which connects to the given YOURS server (for
+	 * example, a local stand-in used for load testing).
+	 * 
+	 * @param baseUrl
+	 *            URL of the server, up to and excluding gosmore-instructions.php
+	 *            and api/1.0/gosmore.php.
+	 */
+	public RoutingService(String baseUrl) {
+		this(baseUrl, new RoutingTransportConfig());
+	}
+
+	/**
+	 * Create a routing service which connects to the given YOURS server with
+	 * the given connection settings.
+	 * 
+	 * @param baseUrl
+	 *            URL of the server, up to and excluding gosmore-instructions.php
+	 *            and api/1.0/gosmore.php.
+	 * @param transportConfig
+	 *            Connection pool sizes, timeouts and compression to use. The
+	 *            settings are copied, so later changes have no effect.
+	 */
+	public RoutingService(String baseUrl, RoutingTransportConfig transportConfig) {
+		this.baseUrl = baseUrl.endsWith("/") ? baseUrl.substring(0, baseUrl.length() - 1) : baseUrl;
+		// copied, so that the settings read later match the connection pool
+		this.transportConfig = new RoutingTransportConfig(transportConfig);
+
 		// Create an HttpClient with the ThreadSafeClientConnManager.
 		// This connection manager must be used if more than one thread will
 		// be accessing the HttpClient.
 		HttpParams params = new BasicHttpParams();
 		HttpProtocolParams.setVersion(params, HttpVersion.HTTP_1_1);
+		ConnManagerParams.setMaxTotalConnections(params, transportConfig.getMaxConnections());
+		ConnManagerParams.setMaxConnectionsPerRoute(params,
+				new ConnPerRouteBean(transportConfig.getMaxConnectionsPerRoute()));
+		ConnManagerParams.setTimeout(params, transportConfig.getPoolTimeout());
+		HttpConnectionParams.setConnectionTimeout(params, transportConfig.getConnectTimeout());
+		HttpConnectionParams.setSoTimeout(params, transportConfig.getReadTimeout());
+		HttpConnectionParams.setTcpNoDelay(params, true);
 
 		SchemeRegistry schemeRegistry = new SchemeRegistry();
-		schemeRegistry.register(new Scheme("http", PlainSocketFactory
-				.getSocketFactory(), 80));
+		schemeRegistry.register(new Scheme("http", new TimedSocketFactory(), 80));
 
 		ThreadSafeClientConnManager cm = new ThreadSafeClientConnManager(
 				params, schemeRegistry);
-		client = new DefaultHttpClient(cm, params);
+		DefaultHttpClient httpClient = new DefaultHttpClient(cm, params);
+		httpClient.setKeepAliveStrategy(new KeepAliveStrategy());
+		if (transportConfig.isCompression()) {
+			httpClient.addRequestInterceptor(new AcceptCompressionInterceptor());
+			httpClient.addResponseInterceptor(new DecompressionInterceptor());
+		}
+		client = httpClient;
+	}
+
+	/**
+	 * Set whether routes are treated as symmetric. When set, a cache miss for a
+	 * route from A to B is answered by reversing the cached route from B to A,
+	 * if there is one. This is only sound while routes do not depend on the
+	 * direction travelled, as is the case for the shortest foot routes requested
+	 * by {@link #getRouteFromService(RouteEndpoints)}.
+	 * 
+	 * @param symmetricRoutes
+	 *            true to serve reversed routes from the cache, false to only
+	 *            serve routes cached in the direction requested (the default).
+	 */
+	public void setSymmetricRoutes(boolean symmetricRoutes) {
+		this.symmetricRoutes = symmetricRoutes;
+	}
+
+	/**
+	 * Set the policy used by {@link #snapLocation(LatLong)}. Routes and
+	 * directions are requested and cached between the endpoints passed in,
+	 * so callers snap the endpoints which move (such as successive GPS fixes)
+	 * to share a cached route, and pass fixed endpoints such as POIs as they
+	 * are.
+	 * 
+	 * @param snapPolicy
+	 *            The policy to apply, or null to use locations as given (the
+	 *            default).
+	 */
+	public void setSnapPolicy(EndpointSnapPolicy snapPolicy) {
+		this.snapPolicy = snapPolicy;
+	}
+
+	/**
+	 * Set the reporter which receives metrics from this service: cache hits,
+	 * misses and evictions, upstream request timings, response sizes, route
+	 * sizes and errors. See {@link RoutingMetricsReporter} for the names used.
+	 * 
+	 * @param metricsReporter
+	 *            The reporter, or null to disable metrics (the default). When
+	 *            disabled, no timings are taken.
+	 */
+	public void setMetricsReporter(RoutingMetricsReporter metricsReporter) {
+		this.metricsReporter = metricsReporter;
+	}
+
+	/**
+	 * Open a trace on the calling thread. Until it is ended, each call to
+	 * {@link #getRoute(LatLong, LatLong, boolean)} and
+	 * {@link #getDirections(LatLong, LatLong)} on this thread records a span of
+	 * the trace with the metrics reporter.
+	 * 
+	 * @param name
+	 *            Name of the traced operation, such as "tour".
+	 * @return The trace, which must be ended on the calling thread. If metrics
+	 *         are disabled, a trace which records nothing.
+	 */
+	public RouteTrace startTrace(String name) {
+		RoutingMetricsReporter reporter = metricsReporter;
+		if (reporter == null) {
+			return RouteTrace.DISABLED;
+		}
+		return RouteTrace.start(name, reporter);
+	}
+
+	/**
+	 * Set the policy for retrying failed requests to the server. The default
+	 * makes up to 3 attempts, with jittered exponential backoff starting at
+	 * 250ms.
+	 * 
+	 * @param retryPolicy
+	 *            The policy, or null to never retry.
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Set the circuit breaker which stops requests to the server while it is
+	 * failing. While the breaker is open, routes are served by the fallback
+	 * (see {@link #setStraightLineFallback(boolean)}). The default opens after
+	 * 5 consecutive failures, for 30 seconds.
+	 * 
+	 * @param circuitBreaker
+	 *            The breaker, or null to always send requests.
+	 */
+	public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+		this.circuitBreaker = circuitBreaker;
+	}
+
+	/**
+	 * Set whether requests are hedged. When set, if the server has not
+	 * answered a route request within the 95th percentile of recent latencies,
+	 * a duplicate request is sent and whichever answers first is used. This
+	 * bounds tail latency at the cost of a few percent more requests.
+	 * 
+	 * @param hedgedRequests
+	 *            true to hedge requests, false to not (the default).
+	 */
+	public void setHedgedRequests(boolean hedgedRequests) {
+		this.hedgedRequests = hedgedRequests;
+	}
+
+	/**
+	 * Set whether a straight line is returned when the server cannot provide
+	 * a route. A route is always taken from the cache first, if there is one,
+	 * even if the cache was not requested.
+	 * 
+	 * @param straightLineFallback
+	 *            true to return an approximate route with no waypoints (see
+	 *            {@link RouteInfo#isApproximate()}); false to throw the error from
+	 *            the server (the default).
+	 */
+	public void setStraightLineFallback(boolean straightLineFallback) {
+		this.straightLineFallback = straightLineFallback;
+	}
+
+	/**
+	 * Set the cache in which routes are kept, replacing the default cache of
+	 * this process. A TieredRouteCache over a RemoteRouteCache shares routes
+	 * between processes, so that a route fetched by any of them is a hit for
+	 * all.
+	 * 
+	 * @param routeCache
+	 *            The cache. Routes in the previous cache are not carried over.
+	 */
+	public void setRouteCache(RouteCache routeCache) {
+		this.routeCache = routeCache;
+	}
+
+	/**
+	 * Set the server used to route several legs in one request. The server
+	 * must offer the OSRM route API (<a
+	 * href="http://project-osrm.org/docs/v5.24.0/api/#route-service"
+	 * >http://project-osrm.org/docs/v5.24.0/api/#route-service</a>) with a
+	 * foot profile. When set, {@link #getRoutes(List, boolean)} asks it for
+	 * every leg of a tour at once.
+	 * 
+	 * @param batchBaseUrl
+	 *            URL of the server, up to and excluding route/v1, or null to
+	 *            request each leg from the YOURS server (the default).
+	 */
+	public void setBatchBaseUrl(String batchBaseUrl) {
+		if (batchBaseUrl != null && batchBaseUrl.endsWith("/")) {
+			batchBaseUrl = batchBaseUrl.substring(0, batchBaseUrl.length() - 1);
+		}
+		this.batchBaseUrl = batchBaseUrl;
 	}
 
 	public void shutdown() {
+		synchronized (this) {
+			if (hedgeExecutor != null) {
+				hedgeExecutor.shutdownNow();
+			}
+			if (prefetchExecutor != null) {
+				prefetchExecutor.shutdownNow();
+			}
+			if (legExecutor != null) {
+				legExecutor.shutdownNow();
+			}
+		}
 		if (client != null) {
 			client.getConnectionManager().shutdown();
 		}
@@ -79,65 +470,662 @@ public class RoutingService {
 	 * @param useCache
 	 *            Indicates whether the service should return a cached route, if one exists. If 
 	 *            this flag is set to true, and a cached route is not available, then the new 
-	 *            route obtained from the server will be cached.
+	 *            route obtained from the server will be cached. If symmetric
+	 *            routes are enabled, a cached route in the opposite direction is
+	 *            reversed and returned.
 	 * @return Information on the route calculated, including the waypoints.
+	 *         If the server fails, see {@link #setStraightLineFallback(boolean)}.
 	 * @throws IOException
 	 *             If an error occurs while retrieving the route from the
-	 *             server.
+	 *             server, and there is no fallback route.
 	 */
 	public RouteInfo getRoute(LatLong start, LatLong end, boolean useCache)
 			throws IOException {
-		RouteEndpoints points = new RouteEndpoints(start, end);
+		RouteTrace trace = RouteTrace.current();
+		long traceStart = trace == null ? 0 : System.nanoTime();
+		try {
+			return getRoute(new RouteEndpoints(start, end), useCache);
+		} finally {
+			if (trace != null) {
+				trace.recordSpan("getRoute", traceStart);
+			}
+		}
+	}
+
+	private RouteInfo getRoute(RouteEndpoints points, boolean useCache) throws IOException {
 		if (useCache) {
-			if (getCachedRoute(points) != null) {
-				return getCachedRoute(points); 
+			RouteInfo cached = findCachedRoute(points);
+			if (cached != null) {
+				count(RoutingMetricsReporter.CACHE_HIT);
+				return cached; 
 			} 			
-			RouteInfo route = getRouteFromService(points);
+
+			count(RoutingMetricsReporter.CACHE_MISS);
+			RouteInfo route = fetchRoute(points);
 			addRouteToCache(points, route);
 			return route;
 		} else {
-			RouteInfo route = getRouteFromService(points);
+			count(RoutingMetricsReporter.CACHE_MISS);
+			RouteInfo route = fetchRoute(points);
 			addRouteToCache(points, route);
 			return route;
 		}
 	}
 
+	/**
+	 * Indicates whether {@link #getRoute(LatLong, LatLong, boolean)} would
+	 * return a cached route for the given points, without making a request to
+	 * the server.
+	 */
+	public boolean isRouteCached(LatLong start, LatLong end) {
+		RouteEndpoints endpoints = new RouteEndpoints(start, end);
+		return routeCache.contains(endpoints)
+				|| (symmetricRoutes && routeCache.contains(endpoints.getReversed()));
+	}
+
+	/**
+	 * Calculate the routes between each pair of consecutive points of a tour.
+	 * Cached legs are taken from the cache (if useCache is set). If more than
+	 * one leg is missing and a batch server is set (see
+	 * {@link #setBatchBaseUrl(String)}), the whole tour is requested in one
+	 * call and split into legs, each of which is cached. Legs which are still
+	 * missing, for example because the batch request failed, are requested
+	 * one at a time as by {@link #getRoute(LatLong, LatLong, boolean)}.
+	 * 
+	 * @param points
+	 *            The stops of the tour, in order.
+	 * @param useCache
+	 *            Indicates whether cached routes may be returned.
+	 * @return The route of each leg, so one fewer than the number of points.
+	 *         A leg may be null if the server's response could not be used.
+	 * @throws IOException
+	 *             If an error occurs while retrieving a leg from the server,
+	 *             and there is no fallback route for it.
+	 */
+	public List<RouteInfo> getRoutes(List<LatLong> points, boolean useCache) throws IOException {
+		return getRoutes(points, useCache, null);
+	}
+
+	/**
+	 * Calculate the routes between each pair of consecutive points of a tour,
+	 * as {@link #getRoutes(List, boolean)} does, passing each leg to a
+	 * listener as soon as it is available. Cached legs are passed first. If a
+	 * listener is given and several legs must be requested one at a time,
+	 * they are requested concurrently (up to the number of connections per
+	 * route), so that the first leg arrives after the latency of the fastest
+	 * request rather than after the whole tour.
+	 * 
+	 * @param listener
+	 *            Receives each leg as it is retrieved, or null.
+	 * @throws IOException
+	 *             If an error occurs while retrieving a leg from the server,
+	 *             and there is no fallback route for it. Other legs are still
+	 *             retrieved and passed to the listener first.
+	 */
+	public List<RouteInfo> getRoutes(List<LatLong> points, boolean useCache, LegListener listener)
+			throws IOException {
+		RouteTrace trace = RouteTrace.current();
+		long traceStart = trace == null ? 0 : System.nanoTime();
+		try {
+			int legCount = Math.max(0, points.size() - 1);
+			List<RouteEndpoints> legs = new ArrayList<RouteEndpoints>(legCount);
+			for (int i = 1; i < points.size(); i++) {
+				legs.add(new RouteEndpoints(points.get(i - 1), points.get(i)));
+			}
+
+			RouteInfo[] routes = useCache ? findCachedRoutes(legs) : new RouteInfo[legCount];
+			int missing = 0;
+			for (int i = 0; i < legCount; i++) {
+				if (routes[i] == null) {
+					missing++;
+				} else {
+					count(RoutingMetricsReporter.CACHE_HIT);
+					notifyLeg(listener, i, routes[i]);
+				}
+			}
+
+			if (missing > 1 && batchBaseUrl != null) {
+				List<RouteInfo> batch = getRoutesFromBatchService(legs);
+				if (batch != null) {
+					for (int i = 0; i < legCount; i++) {
+						if (routes[i] == null) {
+							count(RoutingMetricsReporter.CACHE_MISS);
+							routes[i] = batch.get(i);
+							addRouteToCache(legs.get(i), routes[i]);
+							notifyLeg(listener, i, routes[i]);
+						}
+					}
+				}
+			}
+
+			missing = 0;
+			for (RouteInfo route : routes) {
+				if (route == null) {
+					missing++;
+				}
+			}
+			if (listener != null && missing > 1) {
+				fetchLegsConcurrently(legs, routes, useCache, listener);
+				return Arrays.asList(routes);
+			}
+
+			for (int i = 0; i < legCount; i++) {
+				if (Thread.currentThread().isInterrupted()) {
+					throw new InterruptedIOException("Interrupted while retrieving routes");
+				}
+				if (routes[i] == null) {
+					routes[i] = getRoute(legs.get(i), useCache);
+					notifyLeg(listener, i, routes[i]);
+				}
+			}
+			return Arrays.asList(routes);
+		} finally {
+			if (trace != null) {
+				trace.recordSpan("getRoutes", traceStart);
+			}
+		}
+	}
+
+	/**
+	 * Retrieve the missing legs of a tour on the leg executor, passing each to
+	 * the listener on the calling thread as it completes.
+	 * 
+	 * @param routes
+	 *            The route of each leg, with null for the legs to retrieve.
+	 *            Retrieved legs are stored into it.
+	 */
+	private void fetchLegsConcurrently(List<RouteEndpoints> legs, RouteInfo[] routes,
+			final boolean useCache, LegListener listener) throws IOException {
+		CompletionService<RouteInfo> completion = new ExecutorCompletionService<RouteInfo>(getLegExecutor());
+		Map<Future<RouteInfo>, Integer> indices = new HashMap<Future<RouteInfo>, Integer>();
+		List<AbortableTask<RouteInfo>> tasks = new ArrayList<AbortableTask<RouteInfo>>();
+		for (int i = 0; i < routes.length; i++) {
+			if (routes[i] == null) {
+				final RouteEndpoints leg = legs.get(i);
+				AbortableTask<RouteInfo> task = new AbortableTask<RouteInfo>(new Callable<RouteInfo>() {
+					@Override
+					public RouteInfo call() throws IOException {
+						return getRoute(leg, useCache);
+					}
+				});
+				tasks.add(task);
+				indices.put(completion.submit(task), i);
+			}
+		}
+
+		IOException failure = null;
+		try {
+			for (int n = indices.size(); n > 0; n--) {
+				Future<RouteInfo> f = completion.take();
+				int i = indices.get(f);
+				try {
+					routes[i] = f.get();
+					notifyLeg(listener, i, routes[i]);
+				} catch (ExecutionException e) {
+					if (failure == null) {
+						failure = e.getCause() instanceof IOException ? (IOException) e.getCause()
+								: new IOException(e.getCause().toString());
+					}
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while retrieving routes");
+		} finally {
+			for (Future<RouteInfo> f : indices.keySet()) {
+				f.cancel(true);
+			}
+			for (AbortableTask<RouteInfo> task : tasks) {
+				task.abort();
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	private synchronized ExecutorService getLegExecutor() {
+		if (legExecutor == null) {
+			legExecutor = Executors.newFixedThreadPool(transportConfig.getMaxConnectionsPerRoute(),
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "RoutingService-leg");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+		return legExecutor;
+	}
+
+	private static void notifyLeg(LegListener listener, int index, RouteInfo route) {
+		if (listener != null) {
+			listener.onLeg(index, route);
+		}
+	}
+
+	/**
+	 * Request the routes of all legs from the batch server in one call. The
+	 * request goes through the circuit breaker as requests for single routes
+	 * do, so that tours are not held up by a batch request to a failing
+	 * server, and batch failures open the breaker. It is not retried, as the
+	 * legs it fails to provide are requested one at a time.
+	 * 
+	 * @return The route of each leg, or null if the request failed for any
+	 *         reason other than interruption, or the breaker is open.
+	 */
+	private List<RouteInfo> getRoutesFromBatchService(List<RouteEndpoints> legs)
+			throws InterruptedIOException {
+		StringBuilder coordinates = new StringBuilder();
+		coordinates.append(legs.get(0).getStart().getLongitude()).append(',')
+				.append(legs.get(0).getStart().getLatitude());
+		for (RouteEndpoints leg : legs) {
+			coordinates.append(';').append(leg.getEnd().getLongitude()).append(',')
+					.append(leg.getEnd().getLatitude());
+		}
+
+		URI uri;
+		try {
+			uri = new URI(batchBaseUrl + "/route/v1/foot/" + coordinates
+					+ "?overview=false&steps=true&geometries=geojson");
+		} catch (URISyntaxException e) {
+			count(RoutingMetricsReporter.ERROR_URI_SYNTAX);
+			LOG.fine("URI Syntax Exception caught!");
+			return null;
+		}
+
+		CircuitBreaker breaker = circuitBreaker;
+		if (breaker != null && !breaker.allowRequest()) {
+			count(RoutingMetricsReporter.CIRCUIT_OPEN);
+			return null;
+		}
+		String result;
+		try {
+			result = execute(uri);
+		} catch (InterruptedIOException e) {
+			if (Thread.currentThread().isInterrupted()) {
+				if (breaker != null) {
+					breaker.recordAbandoned();
+				}
+				throw e;
+			}
+			if (breaker != null) {
+				breaker.recordFailure();
+			}
+			LOG.fine("Batch route request timed out");
+			return null;
+		} catch (IOException e) {
+			RetryPolicy retry = retryPolicy;
+			if (breaker != null) {
+				if (retry != null && !retry.isRetryable(e)) {
+					// the server answered, even if it rejected the request
+					breaker.recordSuccess();
+				} else {
+					breaker.recordFailure();
+				}
+			}
+			LOG.fine("Batch route request failed: " + e.getMessage());
+			return null;
+		}
+		if (breaker != null) {
+			breaker.recordSuccess();
+		}
+
+		try {
+			long parseStart = startTimer();
+			List<RouteInfo> routes = parseBatchRoute(result, legs.size());
+			stopTimer(RoutingMetricsReporter.UPSTREAM_PARSE, parseStart);
+			for (RouteInfo route : routes) {
+				recordValue(RoutingMetricsReporter.ROUTE_WAYPOINTS, route.getWaypoints().size());
+			}
+			return routes;
+		} catch (JSONException e) {
+			count(RoutingMetricsReporter.ERROR_JSON);
+			LOG.fine("JSON Exception caught!");
+		}
+		return null;
+	}
+
+	/**
+	 * Get a route from the server, retrying and hedging requests as configured,
+	 * and falling back if the server fails or the circuit breaker is open.
+	 * Responses which cannot be parsed are neither retried nor counted as
+	 * failures by the breaker.
+	 */
+	private RouteInfo fetchRoute(RouteEndpoints endpoints) throws IOException {
+		CircuitBreaker breaker = circuitBreaker;
+		RetryPolicy retry = retryPolicy;
+		int maxAttempts = retry == null ? 1 : retry.getMaxAttempts();
+		IOException failure = null;
+
+		for (int attempt = 1; attempt <= maxAttempts; attempt++) {
+			if (breaker != null && !breaker.allowRequest()) {
+				count(RoutingMetricsReporter.CIRCUIT_OPEN);
+				return getFallbackRoute(endpoints,
+						new IOException("Routing service unavailable: circuit breaker open"));
+			}
+
+			RouteInfo route = null;
+			failure = null;
+			try {
+				// a leg fetched beside the other legs of a tour is not hedged,
+				// as they already use the connections a hedge would need
+				boolean hedge = hedgedRequests && currentTask.get() == null;
+				route = hedge ? fetchHedged(endpoints) : fetchTimed(endpoints);
+			} catch (InterruptedIOException e) {
+				if (Thread.currentThread().isInterrupted()) {
+					// abandoned by the caller, so says nothing about the server
+					if (breaker != null) {
+						breaker.recordAbandoned();
+					}
+					throw e;
+				}
+				failure = e; // timed out
+			} catch (IOException e) {
+				failure = e;
+			}
+
+			if (route == null && failure == null) {
+				// the response could not be parsed: asking again would get the
+				// same response, and says nothing about the server's health
+				if (breaker != null) {
+					breaker.recordAbandoned();
+				}
+				break;
+			}
+			if (route != null || (retry != null && !retry.isRetryable(failure))) {
+				// the server answered, even if it rejected the request
+				if (breaker != null) {
+					breaker.recordSuccess();
+				}
+				if (route != null) {
+					return route;
+				}
+				break;
+			}
+			if (breaker != null) {
+				breaker.recordFailure();
+			}
+			if (attempt < maxAttempts) {
+				count(RoutingMetricsReporter.UPSTREAM_RETRY);
+				try {
+					Thread.sleep(retry.getDelay(attempt));
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while waiting to retry");
+				}
+			}
+		}
+		return getFallbackRoute(endpoints, failure);
+	}
+
+	/**
+	 * Get a route to use when the server cannot provide one: the cached route,
+	 * if there is one, otherwise a straight line if enabled.
+	 * 
+	 * @param failure
+	 *            The error from the server, or null if its response could not
+	 *            be used.
+	 * @return The fallback route, or null if there is none and failure is null.
+	 * @throws IOException
+	 *             failure, if there is no fallback route.
+	 */
+	private RouteInfo getFallbackRoute(RouteEndpoints endpoints, IOException failure) throws IOException {
+		RouteInfo route = findCachedRoute(endpoints);
+		if (route == null && straightLineFallback) {
+			route = new RouteInfo(new ArrayList<LatLong>(), true);
+		}
+		if (route != null) {
+			count(RoutingMetricsReporter.ROUTE_FALLBACK);
+			return route;
+		}
+		if (failure != null) {
+			throw failure;
+		}
+		return null;
+	}
+
+	/**
+	 * Get a route from the server, recording the latency of successful
+	 * requests for hedging.
+	 */
+	private RouteInfo fetchTimed(RouteEndpoints endpoints) throws IOException {
+		long start = System.nanoTime();
+		RouteInfo route = getRouteFromService(endpoints);
+		if (route != null) {
+			latencyTracker.record(System.nanoTime() - start);
+		}
+		return route;
+	}
+
+	/**
+	 * Get a route from the server, sending a second request if the first has
+	 * not been answered within the hedging percentile of recent latencies.
+	 * 
+	 * @return The first route returned, or null if neither request produced
+	 *         a route and neither failed with an IOException.
+	 */
+	private RouteInfo fetchHedged(final RouteEndpoints endpoints) throws IOException {
+		long hedgeDelay = latencyTracker.getPercentile(HEDGE_PERCENTILE, HEDGE_MIN_SAMPLES);
+		if (hedgeDelay < 0) {
+			return fetchTimed(endpoints);
+		}
+
+		CompletionService<RouteInfo> completion = new ExecutorCompletionService<RouteInfo>(getHedgeExecutor());
+		Callable<RouteInfo> request = new Callable<RouteInfo>() {
+			@Override
+			public RouteInfo call() throws IOException {
+				return fetchTimed(endpoints);
+			}
+		};
+
+		List<Future<RouteInfo>> requests = new ArrayList<Future<RouteInfo>>();
+		List<AbortableTask<RouteInfo>> tasks = new ArrayList<AbortableTask<RouteInfo>>();
+		IOException failure = null;
+		try {
+			tasks.add(new AbortableTask<RouteInfo>(request));
+			requests.add(completion.submit(tasks.get(0)));
+			Future<RouteInfo> done = completion.poll(hedgeDelay, TimeUnit.NANOSECONDS);
+			if (done == null) {
+				count(RoutingMetricsReporter.UPSTREAM_HEDGE);
+				tasks.add(new AbortableTask<RouteInfo>(request));
+				requests.add(completion.submit(tasks.get(1)));
+			}
+
+			for (int remaining = requests.size(); remaining > 0; remaining--) {
+				if (done == null) {
+					done = completion.take();
+				}
+				try {
+					RouteInfo route = done.get();
+					if (route != null) {
+						return route;
+					}
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof IOException) {
+						failure = (IOException) e.getCause();
+					} else {
+						throw new IOException("Error retrieving route: " + e.getCause());
+					}
+				}
+				done = null;
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for route");
+		} finally {
+			// interrupting the losing request does not stop a blocking read,
+			// so abort it to free its connection
+			for (Future<RouteInfo> f : requests) {
+				f.cancel(true);
+			}
+			for (AbortableTask<RouteInfo> task : tasks) {
+				task.abort();
+			}
+		}
+
+		if (failure != null) {
+			throw failure;
+		}
+		return null;
+	}
+
+	private synchronized ExecutorService getHedgeExecutor() {
+		if (hedgeExecutor == null) {
+			hedgeExecutor = Executors.newCachedThreadPool(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RoutingService-hedge");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return hedgeExecutor;
+	}
+
 	/**
      * A method for asking the routing service for written directions 
-     * from a start point to an end point.
+     * from a start point to an end point. Directions are cached by their
+     * endpoints, so directions prefetched with
+     * {@link #prefetchDirections(LatLong, List)} are returned without a
+     * request to the server (for a start point from the user's location,
+     * pass it through {@link #snapLocation(LatLong)} in both calls).
      * 
      * @param start, end  
      * 		start and end points of the route segment 
-     * @return String describing the directions
+     * @return String describing the directions, with line breaks replaced by
+     *         spaces, or null if the server's response could not be used
      * @throws IOException
      */
 	public String getDirections(LatLong start, LatLong end) throws IOException {
+		RouteTrace trace = RouteTrace.current();
+		long traceStart = trace == null ? 0 : System.nanoTime();
+		try {
+			RouteEndpoints endpoints = new RouteEndpoints(start, end);
+			String directions = getCachedDirections(endpoints);
+			if (directions != null) {
+				count(RoutingMetricsReporter.DIRECTIONS_CACHE_HIT);
+				return directions;
+			}
+			count(RoutingMetricsReporter.DIRECTIONS_CACHE_MISS);
+			directions = getDirectionsFromService(endpoints);
+			if (directions != null) {
+				synchronized (directionsCache) {
+					directionsCache.put(endpoints, directions);
+				}
+			}
+			return directions;
+		} finally {
+			if (trace != null) {
+				trace.recordSpan("getDirections", traceStart);
+			}
+		}
+	}
+
+	/**
+	 * Get cached directions from a start point to an end point, without
+	 * making a request to the server.
+	 * 
+	 * @return The directions, as returned by
+	 *         {@link #getDirections(LatLong, LatLong)}, or null if they are not
+	 *         cached.
+	 */
+	public String getCachedDirections(LatLong start, LatLong end) {
+		return getCachedDirections(new RouteEndpoints(start, end));
+	}
+
+	/**
+	 * Retrieve and cache directions from a start point to each of the given
+	 * end points in the background. Prefetches queued by an earlier call which
+	 * have not started yet are cancelled, as the user has moved on. Directions
+	 * which are already cached are not requested again, and errors are
+	 * ignored.
+	 * 
+	 * @param start
+	 *            Start point of the directions, normally the user's location.
+	 * @param ends
+	 *            End points of the directions, normally the selected POIs.
+	 */
+	public void prefetchDirections(final LatLong start, List<LatLong> ends) {
+		synchronized (this) {
+			for (Future<?> f : pendingPrefetches) {
+				f.cancel(false);
+			}
+			pendingPrefetches.clear();
+
+			ExecutorService executor = getPrefetchExecutor();
+			for (final LatLong end : ends) {
+				if (getCachedDirections(new RouteEndpoints(start, end)) != null) {
+					continue;
+				}
+				pendingPrefetches.add(executor.submit(new Runnable() {
+					@Override
+					public void run() {
+						count(RoutingMetricsReporter.DIRECTIONS_PREFETCH);
+						try {
+							getDirections(start, end);
+						} catch (IOException e) {
+							LOG.fine("Directions prefetch failed");
+						}
+					}
+				}));
+			}
+		}
+	}
+
+	private String getCachedDirections(RouteEndpoints endpoints) {
+		synchronized (directionsCache) {
+			return directionsCache.get(endpoints);
+		}
+	}
+
+	private synchronized ExecutorService getPrefetchExecutor() {
+		if (prefetchExecutor == null) {
+			// one thread, so that prefetching does not compete with the routes
+			// the user is waiting for
+			prefetchExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "RoutingService-prefetch");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return prefetchExecutor;
+	}
+
+	private String getDirectionsFromService(RouteEndpoints endpoints) throws IOException {
 		try { 
 			// making URI
 			URI uri = new URI( 
-				"http://yours.cs.ubc.ca/yours/gosmore-instructions.php?"
-					 + "&flat=" + start.getLatitude() 
-					 + "&flon=" + start.getLongitude() 
-					 + "&tlat=" + end.getLatitude() 
-					 + "&tlon=" + end.getLongitude() 
+				baseUrl + "/gosmore-instructions.php?"
+					 + "&flat=" + endpoints.getStart().getLatitude() 
+					 + "&flon=" + endpoints.getStart().getLongitude() 
+					 + "&tlat=" + endpoints.getEnd().getLatitude() 
+					 + "&tlon=" + endpoints.getEnd().getLongitude() 
 					 + "&v=foot&fast=0&instructions=1&format=geojson"); 
-			// Constructing httpget and responsehandler for client.execute
-			HttpGet request = new HttpGet(uri); 
-			ResponseHandler<String> response = new BasicResponseHandler(); 
-			// Client execute
-			String result = client.execute(request, response); 
-			Log.d(LOG_TAG, "our result from directions : " + result);
+			String result = execute(uri); 
 			// JSON parsing
+			long parseStart = startTimer();
 			JSONObject object = (JSONObject) new JSONTokener(result).nextValue(); 
 			JSONObject properties = object.getJSONObject("properties");	
 			// Get the description aspect of properties
 			String description = properties.getString("description");
+			// the description is HTML, but is shown as plain text
+			description = description.replaceAll("<br\\s*/?>", " ");
+			stopTimer(RoutingMetricsReporter.UPSTREAM_PARSE, parseStart);
 			return description; 
 			 
 		} catch (URISyntaxException e) { 
-			 Log.d(LOG_TAG, "URI Syntax Exception caught!");
+			 count(RoutingMetricsReporter.ERROR_URI_SYNTAX);
+			 LOG.fine("URI Syntax Exception caught!");
 		} catch (JSONException e) { 
-			 Log.d(LOG_TAG, "JSON Exception caught!");
+			 count(RoutingMetricsReporter.ERROR_JSON);
+			 LOG.fine("JSON Exception caught!");
 		}
 		
 		return null;
@@ -160,57 +1148,416 @@ public class RoutingService {
 	 *             If an error occurs while retrieving the route from the
 	 *             server.
 	 */
-	private RouteInfo getRouteFromService(RouteEndpoints endpoints) 
+	protected RouteInfo getRouteFromService(RouteEndpoints endpoints) 
 			 throws IOException { 
 		RouteInfo route = null; 
 		try { 
 			// making URI
 			URI uri = new URI( 
-				"http://yours.cs.ubc.ca/yours/api/1.0/gosmore.php?format=geojson"
+				baseUrl + "/api/1.0/gosmore.php?format=geojson"
 					 + "&flat=" + endpoints.getStart().getLatitude() 
 					 + "&flon=" + endpoints.getStart().getLongitude() 
 					 + "&tlat=" + endpoints.getEnd().getLatitude() 
 					 + "&tlon=" + endpoints.getEnd().getLongitude() 
 					 + "&v=foot&fast=0"); 
 			
-			 // Constructing httpget and responsehandler for client.execute
-			 HttpGet request = new HttpGet(uri); 
-			 ResponseHandler<String> response = new BasicResponseHandler(); 
-			 // Client execute
-			 String result = client.execute(request, response); 
-			 Log.d(LOG_TAG, "our result from service : "+ result);
-			 // JSON parsing
-			 JSONObject object = (JSONObject) new JSONTokener(result).nextValue(); 
-			 JSONArray coordinates = object.getJSONArray("coordinates"); 
-			 // Got the result (coordinates), now we make it into something we want 
-			 double latitude; 
-			 double longitude; 
-			 ArrayList<LatLong> rInfo = new ArrayList<LatLong>(); 
-			 for (int i = 0; i < coordinates.length(); i++) { 
-				 longitude = coordinates.getJSONArray(i).getDouble(0); 
-				 latitude = coordinates.getJSONArray(i).getDouble(1); 
-				 LatLong latLong = new LatLong(latitude, longitude); 
-				 rInfo.add(latLong); 
-			 } 
-			 route = new RouteInfo(rInfo); 
+			 String result = execute(uri); 
+			 long parseStart = startTimer();
+			 route = parseRoute(result); 
+			 stopTimer(RoutingMetricsReporter.UPSTREAM_PARSE, parseStart);
+			 recordValue(RoutingMetricsReporter.ROUTE_WAYPOINTS, route.getWaypoints().size());
 
 		 } catch (URISyntaxException e) { 
-			 Log.d(LOG_TAG, "URI Syntax Exception caught!");
+			 count(RoutingMetricsReporter.ERROR_URI_SYNTAX);
+			 LOG.fine("URI Syntax Exception caught!");
 		 } catch (JSONException e) { 
-			 Log.d(LOG_TAG, "JSON Exception caught!");
+			 count(RoutingMetricsReporter.ERROR_JSON);
+			 LOG.fine("JSON Exception caught!");
 		 } 
 		 return route; 
 	 }
 
-	private RouteInfo getCachedRoute(RouteEndpoints endpoints) {
-		synchronized (routeCache) {
-			return routeCache.get(endpoints);
+	/**
+	 * Send a GET request to the routing server and read the response body.
+	 * 
+	 * @throws IOException
+	 *             If the request fails, or the server returns a status of 300
+	 *             or above.
+	 */
+	private String execute(URI uri) throws IOException {
+		HttpGet request = new HttpGet(uri);
+		AbortableTask<?> task = currentTask.get();
+		if (task != null) {
+			task.setRequest(request);
 		}
+		try {
+			long requestStart = startTimer();
+			HttpResponse response = client.execute(request);
+			stopTimer(RoutingMetricsReporter.UPSTREAM_FIRST_BYTE, requestStart);
+
+			long readStart = startTimer();
+			StatusLine status = response.getStatusLine();
+			HttpEntity entity = response.getEntity();
+			if (status.getStatusCode() >= 300) {
+				// drop the connection rather than read an error body we do not need
+				request.abort();
+				throw new HttpResponseException(status.getStatusCode(), status.getReasonPhrase());
+			}
+			String result = entity == null ? null : readBody(request, entity);
+			stopTimer(RoutingMetricsReporter.UPSTREAM_READ, readStart);
+			if (result != null) {
+				recordValue(RoutingMetricsReporter.RESPONSE_SIZE, result.length());
+			}
+			return result;
+		} catch (IOException e) {
+			count(RoutingMetricsReporter.ERROR_IO);
+			throw e;
+		} finally {
+			if (task != null) {
+				task.setRequest(null);
+			}
+		}
+	}
+
+	/**
+	 * A task run on the hedge or leg executor which can be cancelled while
+	 * it waits for the server. Interrupting its thread does not interrupt a
+	 * blocking read, which would hold its pooled connection until the
+	 * response arrived or timed out, so the request being sent is aborted.
+	 */
+	private class AbortableTask<T> implements Callable<T> {
+		private Callable<T> callable;
+
+		/**
+		 * The request being sent, and whether the task has been aborted.
+		 * Access must be synchronized on this object.
+		 */
+		private HttpUriRequest request;
+		private boolean aborted;
+
+		private AbortableTask(Callable<T> callable) {
+			this.callable = callable;
+		}
+
+		@Override
+		public T call() throws Exception {
+			currentTask.set(this);
+			try {
+				return callable.call();
+			} finally {
+				currentTask.remove();
+			}
+		}
+
+		private synchronized void setRequest(HttpUriRequest request) {
+			this.request = request;
+			if (aborted && request != null) {
+				request.abort();
+			}
+		}
+
+		/**
+		 * Abort the request being sent, and any sent later.
+		 */
+		private synchronized void abort() {
+			aborted = true;
+			if (request != null) {
+				request.abort();
+			}
+		}
+	}
+
+	/**
+	 * Parse a route returned by the routing service in geojson format.
+	 * 
+	 * @param geoJson
+	 *            The body of the response from the service.
+	 * @return Information on the route, including waypoints.
+	 * @throws JSONException
+	 *             If geoJson is not a geojson line string.
+	 */
+	static RouteInfo parseRoute(String geoJson) throws JSONException {
+		JSONObject object = (JSONObject) new JSONTokener(geoJson).nextValue(); 
+		JSONArray coordinates = object.getJSONArray("coordinates"); 
+		// Got the result (coordinates), now we make it into something we want 
+		double latitude; 
+		double longitude; 
+		ArrayList<LatLong> rInfo = new ArrayList<LatLong>(coordinates.length()); 
+		for (int i = 0; i < coordinates.length(); i++) { 
+			JSONArray coordinate = coordinates.getJSONArray(i);
+			longitude = coordinate.getDouble(0); 
+			latitude = coordinate.getDouble(1); 
+			rInfo.add(new LatLong(latitude, longitude)); 
+		} 
+		return new RouteInfo(rInfo); 
+	}
+
+	/**
+	 * Read a response body from its stream, up to the maximum response size.
+	 * The connection is released when the body has been read, or aborted if
+	 * reading fails.
+	 */
+	private String readBody(HttpGet request, HttpEntity entity) throws IOException {
+		int maxSize = transportConfig.getMaxResponseSize();
+		long length = entity.getContentLength();
+		if (length > maxSize) {
+			request.abort();
+			throw new IOException("Response too large: " + length + " bytes");
+		}
+		String charset = EntityUtils.getContentCharSet(entity);
+		Reader reader = new InputStreamReader(entity.getContent(), charset == null ? "UTF-8" : charset);
+		try {
+			StringBuilder result = new StringBuilder(length > 0 ? (int) length : 4096);
+			char[] buffer = new char[4096];
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				result.append(buffer, 0, n);
+				if (result.length() > maxSize) {
+					throw new IOException("Response too large: over " + maxSize + " characters");
+				}
+			}
+			reader.close();
+			return result.toString();
+		} catch (IOException e) {
+			request.abort();
+			throw e;
+		}
+	}
+
+	private void count(String name) {
+		RoutingMetricsReporter reporter = metricsReporter;
+		if (reporter != null) {
+			reporter.count(name);
+		}
+	}
+
+	private void recordValue(String name, long value) {
+		RoutingMetricsReporter reporter = metricsReporter;
+		if (reporter != null) {
+			reporter.recordValue(name, value);
+		}
+	}
+
+	/**
+	 * Start timing an operation.
+	 * 
+	 * @return The start time to pass to stopTimer, or 0 if metrics are disabled.
+	 */
+	private long startTimer() {
+		return metricsReporter == null ? 0 : System.nanoTime();
+	}
+
+	/**
+	 * Record the time taken by an operation started with startTimer.
+	 */
+	private void stopTimer(String name, long start) {
+		RoutingMetricsReporter reporter = metricsReporter;
+		if (reporter != null && start != 0) {
+			reporter.recordTime(name, System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Opens plain sockets, timing each connection.
+	 */
+	private class TimedSocketFactory implements SocketFactory {
+		private SocketFactory factory = PlainSocketFactory.getSocketFactory();
+
+		@Override
+		public Socket createSocket() throws IOException {
+			return factory.createSocket();
+		}
+
+		@Override
+		public Socket connectSocket(Socket sock, String host, int port, InetAddress localAddress,
+				int localPort, HttpParams params) throws IOException {
+			long start = startTimer();
+			Socket result = factory.connectSocket(sock, host, port, localAddress, localPort, params);
+			stopTimer(RoutingMetricsReporter.UPSTREAM_CONNECT, start);
+			return result;
+		}
+
+		@Override
+		public boolean isSecure(Socket sock) {
+			return factory.isSecure(sock);
+		}
+	}
+
+	/**
+	 * Keeps idle connections open for as long as the server allows in its
+	 * Keep-Alive header, or for the configured keep-alive time if it does not
+	 * say.
+	 */
+	private class KeepAliveStrategy implements ConnectionKeepAliveStrategy {
+		@Override
+		public long getKeepAliveDuration(HttpResponse response, HttpContext context) {
+			Header header = response.getFirstHeader("Keep-Alive");
+			if (header != null) {
+				for (String param : header.getValue().split(",")) {
+					String[] pair = param.trim().split("=");
+					if (pair.length == 2 && pair[0].trim().equalsIgnoreCase("timeout")) {
+						try {
+							return Long.parseLong(pair[1].trim()) * 1000;
+						} catch (NumberFormatException e) {
+							// fall back to the configured keep-alive time
+						}
+					}
+				}
+			}
+			return transportConfig.getKeepAlive();
+		}
+	}
+
+	/**
+	 * Asks the server for a compressed response.
+	 */
+	private static class AcceptCompressionInterceptor implements HttpRequestInterceptor {
+		@Override
+		public void process(HttpRequest request, HttpContext context) throws HttpException, IOException {
+			if (!request.containsHeader("Accept-Encoding")) {
+				request.addHeader("Accept-Encoding", "gzip, deflate");
+			}
+		}
+	}
+
+	/**
+	 * Decompresses gzip and deflate compressed responses as they are read.
+	 */
+	private static class DecompressionInterceptor implements HttpResponseInterceptor {
+		@Override
+		public void process(HttpResponse response, HttpContext context) throws HttpException, IOException {
+			HttpEntity entity = response.getEntity();
+			if (entity == null || entity.getContentEncoding() == null) {
+				return;
+			}
+			for (HeaderElement codec : entity.getContentEncoding().getElements()) {
+				if (codec.getName().equalsIgnoreCase("gzip")) {
+					response.setEntity(new InflatingEntity(entity, true));
+					return;
+				} else if (codec.getName().equalsIgnoreCase("deflate")) {
+					response.setEntity(new InflatingEntity(entity, false));
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Parse the legs of a route returned by an OSRM route service, requested
+	 * with steps and geojson geometries.
+	 * 
+	 * @param json
+	 *            The body of the response from the service.
+	 * @param legCount
+	 *            The number of legs requested.
+	 * @return The route of each leg, made of the geometry of its steps.
+	 * @throws JSONException
+	 *             If json is not a successful OSRM response with legCount legs.
+	 */
+	static List<RouteInfo> parseBatchRoute(String json, int legCount) throws JSONException {
+		JSONObject object = (JSONObject) new JSONTokener(json).nextValue();
+		if (!"Ok".equals(object.optString("code"))) {
+			throw new JSONException("Route service returned code " + object.optString("code"));
+		}
+		JSONArray legs = object.getJSONArray("routes").getJSONObject(0).getJSONArray("legs");
+		if (legs.length() != legCount) {
+			throw new JSONException("Expected " + legCount + " legs but got " + legs.length());
+		}
+
+		List<RouteInfo> result = new ArrayList<RouteInfo>(legCount);
+		for (int i = 0; i < legCount; i++) {
+			JSONArray steps = legs.getJSONObject(i).getJSONArray("steps");
+			List<LatLong> waypoints = new ArrayList<LatLong>();
+			for (int j = 0; j < steps.length(); j++) {
+				JSONArray coordinates = steps.getJSONObject(j).getJSONObject("geometry")
+						.getJSONArray("coordinates");
+				for (int k = 0; k < coordinates.length(); k++) {
+					JSONArray coordinate = coordinates.getJSONArray(k);
+					LatLong ll = new LatLong(coordinate.getDouble(1), coordinate.getDouble(0));
+					// each step starts where the previous one ended
+					if (waypoints.isEmpty() || !waypoints.get(waypoints.size() - 1).equals(ll)) {
+						waypoints.add(ll);
+					}
+				}
+			}
+			result.add(new RouteInfo(waypoints));
+		}
+		return result;
+	}
+
+	/**
+	 * Snap a location with the policy set by
+	 * {@link #setSnapPolicy(EndpointSnapPolicy)}, for use as the endpoint of a
+	 * route or directions.
+	 * 
+	 * @return The snapped location, or point itself if no policy is set.
+	 */
+	public LatLong snapLocation(LatLong point) {
+		EndpointSnapPolicy policy = snapPolicy;
+		return policy == null ? point : policy.snap(point);
+	}
+
+	/**
+	 * Get the cached route between the given endpoints or, if symmetric routes
+	 * are enabled, the reverse of the cached route between them in the
+	 * opposite direction.
+	 * 
+	 * @return The route, or null if neither is cached.
+	 */
+	private RouteInfo findCachedRoute(RouteEndpoints endpoints) {
+		RouteInfo route = getCachedRoute(endpoints);
+		if (route == null && symmetricRoutes) {
+			route = getCachedRoute(endpoints.getReversed());
+			if (route != null) {
+				route = route.getReversed();
+			}
+		}
+		return route;
+	}
+
+	/**
+	 * Get the cached routes of several legs, as {@link #findCachedRoute}
+	 * does, with one lookup of the cache for all the legs (and one more for the
+	 * reversed legs still missing, if symmetric routes are enabled).
+	 * 
+	 * @return The route of each leg, or null where none is cached.
+	 */
+	private RouteInfo[] findCachedRoutes(List<RouteEndpoints> legs) {
+		RouteInfo[] routes = new RouteInfo[legs.size()];
+		byte[][] encoded = routeCache.getAll(legs);
+		List<RouteEndpoints> reversed = new ArrayList<RouteEndpoints>();
+		for (int i = 0; i < routes.length; i++) {
+			if (encoded[i] != null) {
+				routes[i] = new RouteInfo(encoded[i]);
+			} else if (symmetricRoutes) {
+				reversed.add(legs.get(i).getReversed());
+			}
+		}
+		if (reversed.isEmpty()) {
+			return routes;
+		}
+
+		encoded = routeCache.getAll(reversed);
+		for (int i = 0, j = 0; i < routes.length; i++) {
+			if (routes[i] == null) {
+				if (encoded[j] != null) {
+					routes[i] = new RouteInfo(encoded[j]).getReversed();
+				}
+				j++;
+			}
+		}
+		return routes;
+	}
+
+	private RouteInfo getCachedRoute(RouteEndpoints endpoints) {
+		byte[] encoded = routeCache.get(endpoints);
+		return encoded == null ? null : new RouteInfo(encoded);
 	}
 
 	private void addRouteToCache(RouteEndpoints endpoints, RouteInfo routeInfo) {
-		synchronized (routeCache) {
-			routeCache.put(endpoints, routeInfo);
+		if (routeInfo == null || routeInfo.isApproximate()) {
+			return;
 		}
+		routeCache.put(endpoints, routeInfo.getEncodedWaypoints());
 	}
 }
@@ -0,0 +1,128 @@
+/**
+ * Settings for the HTTP connections RoutingService makes to the routing server. The defaults
+ * suit a phone talking to a single server; a server-side or load-testing client will want larger
+ * pools. A RoutingService keeps a copy of its config, so later changes have no effect on it.
+ */
+public class RoutingTransportConfig {
+	private int maxConnections = 8;
+	private int maxConnectionsPerRoute = 4;
+	private int connectTimeout = 5000;
+	private int readTimeout = 15000;
+	private long poolTimeout = 5000;
+	private long keepAlive = 30000;
+	private boolean compression = true;
+	private int maxResponseSize = 4 * 1024 * 1024;
+
+	/**
+	 * Create a config with the default settings.
+	 */
+	public RoutingTransportConfig() {
+	}
+
+	/**
+	 * Create a copy of a config.
+	 */
+	public RoutingTransportConfig(RoutingTransportConfig other) {
+		maxConnections = other.maxConnections;
+		maxConnectionsPerRoute = other.maxConnectionsPerRoute;
+		connectTimeout = other.connectTimeout;
+		readTimeout = other.readTimeout;
+		poolTimeout = other.poolTimeout;
+		keepAlive = other.keepAlive;
+		compression = other.compression;
+		maxResponseSize = other.maxResponseSize;
+	}
+
+	/**
+	 * Maximum number of open connections, over all servers. Default 8.
+	 */
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public void setMaxConnections(int maxConnections) {
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Maximum number of open connections to one server. Default 4.
+	 */
+	public int getMaxConnectionsPerRoute() {
+		return maxConnectionsPerRoute;
+	}
+
+	public void setMaxConnectionsPerRoute(int maxConnectionsPerRoute) {
+		this.maxConnectionsPerRoute = maxConnectionsPerRoute;
+	}
+
+	/**
+	 * Time in milliseconds to wait for a connection to be established, or 0 to wait forever.
+	 * Default 5 seconds.
+	 */
+	public int getConnectTimeout() {
+		return connectTimeout;
+	}
+
+	public void setConnectTimeout(int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * Time in milliseconds to wait for data on an open connection, or 0 to wait forever. Default
+	 * 15 seconds.
+	 */
+	public int getReadTimeout() {
+		return readTimeout;
+	}
+
+	public void setReadTimeout(int readTimeout) {
+		this.readTimeout = readTimeout;
+	}
+
+	/**
+	 * Time in milliseconds to wait for a pooled connection to become free when the pool is
+	 * exhausted, or 0 to wait forever. Default 5 seconds.
+	 */
+	public long getPoolTimeout() {
+		return poolTimeout;
+	}
+
+	public void setPoolTimeout(long poolTimeout) {
+		this.poolTimeout = poolTimeout;
+	}
+
+	/**
+	 * Time in milliseconds to keep an idle connection open for reuse, when the server does not
+	 * say how long it will keep it open. Default 30 seconds.
+	 */
+	public long getKeepAlive() {
+		return keepAlive;
+	}
+
+	public void setKeepAlive(long keepAlive) {
+		this.keepAlive = keepAlive;
+	}
+
+	/**
+	 * Whether gzip and deflate compressed responses are requested (and decoded). Default true.
+	 */
+	public boolean isCompression() {
+		return compression;
+	}
+
+	public void setCompression(boolean compression) {
+		this.compression = compression;
+	}
+
+	/**
+	 * Largest response body, in characters, which will be read. Larger responses fail with an
+	 * IOException. Default 4M.
+	 */
+	public int getMaxResponseSize() {
+		return maxResponseSize;
+	}
+
+	public void setMaxResponseSize(int maxResponseSize) {
+		this.maxResponseSize = maxResponseSize;
+	}
+}
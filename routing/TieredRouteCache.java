@@ -0,0 +1,119 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A route cache in two tiers: a small, fast cache in this process in front of a cache shared by
+ * many processes. Lookups try the local tier first, and only the routes it misses are looked up
+ * in the shared tier, all in one request; routes found there are copied to the local tier. New
+ * routes are stored in both tiers, so the hit rate of the shared tier grows with the number of
+ * processes using it. Stores to the shared tier are made on a background thread, so that a slow
+ * shared cache does not hold up the caller; if too many are waiting, new ones are dropped.
+ */
+public class TieredRouteCache implements RouteCache {
+	/**
+	 * Maximum number of stores to the shared tier waiting to be made.
+	 */
+	private final static int MAX_PENDING_PUTS = 1000;
+
+	private RouteCache local;
+	private RouteCache shared;
+
+	/**
+	 * Makes the stores to the shared tier.
+	 */
+	private ExecutorService putExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+			new ArrayBlockingQueue<Runnable>(MAX_PENDING_PUTS), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TieredRouteCache-put");
+					t.setDaemon(true);
+					return t;
+				}
+			}, new ThreadPoolExecutor.DiscardPolicy());
+
+	/**
+	 * Create a cache.
+	 *
+	 * @param local
+	 *            The cache in this process, such as a LocalRouteCache.
+	 * @param shared
+	 *            The cache shared with other processes, such as a RemoteRouteCache.
+	 */
+	public TieredRouteCache(RouteCache local, RouteCache shared) {
+		this.local = local;
+		this.shared = shared;
+	}
+
+	@Override
+	public byte[] get(RouteEndpoints endpoints) {
+		byte[] encoded = local.get(endpoints);
+		if (encoded == null) {
+			encoded = shared.get(endpoints);
+			if (encoded != null) {
+				local.put(endpoints, encoded);
+			}
+		}
+		return encoded;
+	}
+
+	@Override
+	public byte[][] getAll(List<RouteEndpoints> endpoints) {
+		byte[][] result = local.getAll(endpoints);
+
+		List<RouteEndpoints> missing = new ArrayList<RouteEndpoints>();
+		for (int i = 0; i < result.length; i++) {
+			if (result[i] == null) {
+				missing.add(endpoints.get(i));
+			}
+		}
+		if (missing.isEmpty()) {
+			return result;
+		}
+
+		byte[][] found = shared.getAll(missing);
+		for (int i = 0, j = 0; i < result.length; i++) {
+			if (result[i] == null) {
+				result[i] = found[j];
+				if (found[j] != null) {
+					local.put(missing.get(j), found[j]);
+				}
+				j++;
+			}
+		}
+		return result;
+	}
+
+	@Override
+	public boolean contains(RouteEndpoints endpoints) {
+		return local.contains(endpoints) || shared.contains(endpoints);
+	}
+
+	@Override
+	public void put(final RouteEndpoints endpoints, final byte[] encoded) {
+		local.put(endpoints, encoded);
+		putExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				shared.put(endpoints, encoded);
+			}
+		});
+	}
+
+	@Override
+	public void setVersion(long version) {
+		local.setVersion(version);
+		shared.setVersion(version);
+	}
+
+	/**
+	 * Stop the thread which makes stores to the shared tier. Stores still waiting are dropped.
+	 */
+	public void shutdown() {
+		putExecutor.shutdownNow();
+	}
+}
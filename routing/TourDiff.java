@@ -0,0 +1,73 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Compares the stops of a tour before and after a change, such as a POI being added to or removed
+ * from the tour, so that the routes of legs which are in both tours can be kept. A leg of the new
+ * tour is kept if the old tour had a leg between the same two stops, wherever it was in the old
+ * tour; only the legs touched by an insertion, deletion or move need to be requested again.
+ */
+public class TourDiff {
+	private List<RouteInfo> legs;
+
+	/**
+	 * Compare two tours.
+	 *
+	 * @param oldStops
+	 *            The stops of the old tour, in order.
+	 * @param oldLegs
+	 *            The route of each leg of the old tour, or null where there is none. Approximate
+	 *            routes are not kept.
+	 * @param newStops
+	 *            The stops of the new tour, in order.
+	 */
+	public TourDiff(List<LatLong> oldStops, List<RouteInfo> oldLegs, List<LatLong> newStops) {
+		Map<RouteEndpoints, RouteInfo> known = new HashMap<RouteEndpoints, RouteInfo>();
+		for (int i = 0; i < oldLegs.size() && i + 1 < oldStops.size(); i++) {
+			RouteInfo leg = oldLegs.get(i);
+			if (leg != null && !leg.isApproximate()) {
+				known.put(new RouteEndpoints(oldStops.get(i), oldStops.get(i + 1)), leg);
+			}
+		}
+
+		legs = new ArrayList<RouteInfo>(Math.max(0, newStops.size() - 1));
+		for (int i = 1; i < newStops.size(); i++) {
+			legs.add(known.get(new RouteEndpoints(newStops.get(i - 1), newStops.get(i))));
+		}
+	}
+
+	/**
+	 * Get the legs of the new tour.
+	 *
+	 * @return The route of each leg of the new tour which was kept from the old tour, or null for
+	 *         legs which must be requested.
+	 */
+	public List<RouteInfo> getLegs() {
+		return legs;
+	}
+
+	/**
+	 * Find the runs of consecutive missing legs of a tour, so that each run can be requested with
+	 * a single call to {@link RoutingService#getRoutes(List, boolean)}.
+	 *
+	 * @param legs
+	 *            The route of each leg, or null where it is missing.
+	 * @return The index of the first leg of each run and the index after its last leg, in order.
+	 */
+	public static List<int[]> getMissingRuns(List<RouteInfo> legs) {
+		List<int[]> runs = new ArrayList<int[]>();
+		int start = -1;
+		for (int i = 0; i <= legs.size(); i++) {
+			boolean missing = i < legs.size() && legs.get(i) == null;
+			if (missing && start < 0) {
+				start = i;
+			} else if (!missing && start >= 0) {
+				runs.add(new int[] { start, i });
+				start = -1;
+			}
+		}
+		return runs;
+	}
+}
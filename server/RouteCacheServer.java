@@ -0,0 +1,206 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A route cache shared by many RoutingService instances, run as a process of its own and reached
+ * over a socket with RemoteRouteCache (which describes the protocol). It stands in for a shared
+ * cache such as memcached, so that apps and TourServer nodes can be tested sharing their routes on
+ * one machine.
+ *
+ * Routes are stored by version and endpoints, so a route stored under an old version of the map
+ * data is never returned for a newer one; old routes stay until the least recently used are
+ * evicted. The server also holds the current version of the map data for all its clients: it
+ * answers "VERSION" with the version, and "VERSION n" sets it, so that one command moves every
+ * client polling it (see RemoteRouteCache#getSharedVersion) onto the new data. It answers
+ * "STATS" with the number of entries, hits and misses.
+ *
+ * Usage: RouteCacheServer [port] [max routes]
+ */
+public class RouteCacheServer {
+	private ServerSocket serverSocket;
+	private ExecutorService executor = Executors.newCachedThreadPool();
+	private Set<Socket> sockets = Collections.synchronizedSet(new HashSet<Socket>());
+
+	/**
+	 * The cached routes by "version key", in order of use, and counts of lookups. Access must be
+	 * synchronized on the map.
+	 */
+	private Map<String, String> entries;
+	private long hits;
+	private long misses;
+
+	/**
+	 * The current version of the map data. Access must be synchronized on entries.
+	 */
+	private long version;
+
+	/**
+	 * Create a server.
+	 *
+	 * @param port
+	 *            Port to listen on, or 0 for any free port.
+	 * @param maxSize
+	 *            Maximum number of routes kept.
+	 */
+	public RouteCacheServer(int port, final int maxSize) throws IOException {
+		serverSocket = new ServerSocket(port);
+		entries = new LinkedHashMap<String, String>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry<String, String> eldest) {
+				return size() > maxSize;
+			}
+		};
+	}
+
+	public int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * Start accepting connections, each of which is served on a thread of its own.
+	 */
+	public void start() {
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				while (!serverSocket.isClosed()) {
+					try {
+						final Socket socket = serverSocket.accept();
+						sockets.add(socket);
+						executor.execute(new Runnable() {
+							@Override
+							public void run() {
+								serve(socket);
+							}
+						});
+					} catch (IOException e) {
+						// the server socket was closed
+					}
+				}
+			}
+		});
+	}
+
+	public void stop() {
+		try {
+			serverSocket.close();
+		} catch (IOException e) {
+			// nothing more to do
+		}
+		synchronized (sockets) {
+			for (Socket socket : sockets) {
+				try {
+					socket.close();
+				} catch (IOException e) {
+					// nothing more to do
+				}
+			}
+		}
+		executor.shutdownNow();
+	}
+
+	private void serve(Socket socket) {
+		try {
+			socket.setTcpNoDelay(true);
+			BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), "US-ASCII"));
+			Writer out = new OutputStreamWriter(socket.getOutputStream(), "US-ASCII");
+			String line;
+			while ((line = in.readLine()) != null) {
+				handle(line.split(" "), in, out);
+				out.flush();
+			}
+		} catch (SocketException e) {
+			// the client went away
+		} catch (IOException e) {
+			System.err.println("Route cache connection failed: " + e.getMessage());
+		} finally {
+			sockets.remove(socket);
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// nothing more to do
+			}
+		}
+	}
+
+	private void handle(String[] request, BufferedReader in, Writer out) throws IOException {
+		String command = request[0];
+		if (command.equals("GET") && request.length == 3) {
+			int count = Integer.parseInt(request[2]);
+			String[] keys = new String[count];
+			for (int i = 0; i < count; i++) {
+				keys[i] = request[1] + " " + in.readLine();
+			}
+			StringBuilder response = new StringBuilder();
+			synchronized (entries) {
+				for (String key : keys) {
+					String value = entries.get(key);
+					if (value == null) {
+						misses++;
+						response.append("-\n");
+					} else {
+						hits++;
+						response.append('+').append(value).append('\n');
+					}
+				}
+			}
+			out.write(response.toString());
+		} else if (command.equals("HAS") && request.length == 3) {
+			boolean found;
+			synchronized (entries) {
+				found = entries.containsKey(request[1] + " " + request[2]);
+			}
+			out.write(found ? "1\n" : "0\n");
+		} else if (command.equals("PUT") && request.length == 4) {
+			synchronized (entries) {
+				entries.put(request[1] + " " + request[2], request[3]);
+			}
+			out.write("OK\n");
+		} else if (command.equals("PUT") && request.length == 3) {
+			// a route with no waypoints
+			synchronized (entries) {
+				entries.put(request[1] + " " + request[2], "");
+			}
+			out.write("OK\n");
+		} else if (command.equals("VERSION") && request.length == 1) {
+			synchronized (entries) {
+				out.write(version + "\n");
+			}
+		} else if (command.equals("VERSION") && request.length == 2) {
+			long newVersion = Long.parseLong(request[1]);
+			synchronized (entries) {
+				version = newVersion;
+			}
+			out.write("OK\n");
+		} else if (command.equals("STATS")) {
+			synchronized (entries) {
+				out.write(entries.size() + " " + hits + " " + misses + "\n");
+			}
+		} else {
+			out.write("ERR unknown request\n");
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 11311;
+		int maxSize = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+		RouteCacheServer server = new RouteCacheServer(port, maxSize);
+		server.start();
+		System.out.println("Route cache listening on port " + server.getPort());
+	}
+}
@@ -0,0 +1,497 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Headless tour planning server, serving the points of interest of a POIRegistry, a TourState
+ * for each client session and the routes of each session's tour over HTTP with JSON bodies. All
+ * sessions share one RoutingService, so a route fetched for one client is served from the cache to
+ * every other.
+ *
+ * Endpoints:
+ * <ul>
+ * <li>GET /pois: every registered POI, in walking tour order.</li>
+ * <li>GET /pois?q=text: the POIs matching a search, best first.</li>
+ * <li>POST /sessions: create a session, returning {"session": id}.</li>
+ * <li>GET /sessions/{id}/pois: the selected POIs of the session, in tour order.</li>
+ * <li>PUT /sessions/{id}/pois: select POIs, given a JSON array of ids. The tour visits them in
+ * walking tour order, whatever order they are given in.</li>
+ * <li>GET /sessions/{id}/features: the selected features, by name.</li>
+ * <li>PUT /sessions/{id}/features: select features, given a JSON array of names.</li>
+ * <li>GET /sessions/{id}/route: the route of the tour through the selected POIs and back to the
+ * first, one entry per leg, with coordinates as [longitude, latitude] as in GeoJSON. A tour of
+ * one POI has no legs.</li>
+ * <li>DELETE /sessions/{id}: end a session.</li>
+ * </ul>
+ *
+ * Requests are handled by a pluggable Executor, so that a deployment can choose the thread model
+ * (a fixed pool by default). Sessions unused for longer than the session timeout are dropped.
+ *
+ * Usage: TourServer [port] [routing base URL] [threads] [route cache host:port]
+ *
+ * If a route cache address is given, routes are also kept in that shared cache (such as a
+ * RouteCacheServer), so that several server nodes share their routes.
+ */
+public class TourServer {
+	private final static Logger LOG = Logger.getLogger("TourServer");
+	private final static Charset UTF8 = Charset.forName("UTF-8");
+
+	/**
+	 * Time in milliseconds after which an unused session is dropped.
+	 */
+	private final static long SESSION_TIMEOUT = 30 * 60 * 1000;
+
+	/**
+	 * Size of the local tier of the route cache, and the timeout in milliseconds of requests to
+	 * the shared tier, when a shared route cache is used.
+	 */
+	private final static int ROUTE_CACHE_SIZE = 2000;
+	private final static int ROUTE_CACHE_TIMEOUT = 200;
+
+	/**
+	 * Time in milliseconds between reads of the map data version held by the shared route cache.
+	 */
+	private final static long ROUTE_CACHE_VERSION_INTERVAL = 30 * 1000;
+
+	/**
+	 * Maximum number of POIs returned by a search.
+	 */
+	private final static int SEARCH_LIMIT = 50;
+
+	/**
+	 * Creates the storage for the TourState of each session.
+	 */
+	public interface StoreFactory {
+		KeyValueStore createStore(String sessionId);
+	}
+
+	/**
+	 * The state of one client session. Access to the TourState must be synchronized on the
+	 * session, as TourState is not thread-safe.
+	 */
+	private static class Session {
+		private TourState tourState;
+		private volatile long lastAccess;
+
+		private Session(TourState tourState) {
+			this.tourState = tourState;
+			this.lastAccess = System.currentTimeMillis();
+		}
+	}
+
+	private HttpServer server;
+	private POIRegistry registry;
+	private RoutingService routingService;
+	private StoreFactory storeFactory;
+	private Map<String, Session> sessions = new ConcurrentHashMap<String, Session>();
+
+	/**
+	 * Create a server.
+	 *
+	 * @param port
+	 *            Port to listen on, or 0 for any free port.
+	 * @param registry
+	 *            The POIs offered to clients.
+	 * @param routingService
+	 *            Service used for the routes of every session.
+	 * @param storeFactory
+	 *            Creates the storage for each session's TourState.
+	 */
+	public TourServer(int port, POIRegistry registry, RoutingService routingService,
+			StoreFactory storeFactory) throws IOException {
+		this.registry = registry;
+		this.routingService = routingService;
+		this.storeFactory = storeFactory;
+		server = HttpServer.create(new InetSocketAddress(port), 0);
+		server.createContext("/pois", new PoisHandler());
+		server.createContext("/sessions", new SessionsHandler());
+	}
+
+	/**
+	 * Set the executor which handles requests. Must be called before {@link #start()}.
+	 */
+	public void setExecutor(Executor executor) {
+		server.setExecutor(executor);
+	}
+
+	public void start() {
+		server.start();
+	}
+
+	public void stop() {
+		server.stop(0);
+	}
+
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public int getSessionCount() {
+		return sessions.size();
+	}
+
+	private class PoisHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			try {
+				if (!exchange.getRequestMethod().equals("GET")) {
+					send(exchange, 405, error("Method not allowed"));
+					return;
+				}
+				String text = getParameter(exchange.getRequestURI().getRawQuery(), "q");
+				if (text != null) {
+					send(exchange, 200, toJson(registry.search(text, SEARCH_LIMIT)).toString());
+				} else {
+					send(exchange, 200, toJson(registry.getPointsByLocation()).toString());
+				}
+			} catch (JSONException e) {
+				send(exchange, 500, error(e.getMessage()));
+			} catch (IllegalArgumentException e) {
+				// a malformed escape in the query string
+				send(exchange, 400, error(e.getMessage()));
+			} catch (RuntimeException e) {
+				sendInternalError(exchange, e);
+			}
+		}
+	}
+
+	private class SessionsHandler implements HttpHandler {
+		@Override
+		public void handle(HttpExchange exchange) throws IOException {
+			String method = exchange.getRequestMethod();
+			// path is /sessions, /sessions/{id} or /sessions/{id}/{resource}
+			String[] parts = exchange.getRequestURI().getPath().split("/");
+			try {
+				if (parts.length == 2) {
+					if (method.equals("POST")) {
+						send(exchange, 201, new JSONObject().put("session", createSession()).toString());
+					} else {
+						send(exchange, 405, error("Method not allowed"));
+					}
+					return;
+				}
+
+				Session session = sessions.get(parts[2]);
+				long now = System.currentTimeMillis();
+				if (session != null && now - session.lastAccess > SESSION_TIMEOUT) {
+					sessions.remove(parts[2]);
+					session = null;
+				}
+				if (session == null) {
+					send(exchange, 404, error("No session " + parts[2]));
+					return;
+				}
+				session.lastAccess = now;
+				String resource = parts.length > 3 ? parts[3] : "";
+
+				if (resource.equals("") && method.equals("DELETE")) {
+					sessions.remove(parts[2]);
+					send(exchange, 204, null);
+				} else if (resource.equals("pois") && method.equals("GET")) {
+					send(exchange, 200, toJson(getSelectedPOIs(session)).toString());
+				} else if (resource.equals("pois") && method.equals("PUT")) {
+					setSelectedPOIs(session, readArray(exchange));
+					send(exchange, 200, toJson(getSelectedPOIs(session)).toString());
+				} else if (resource.equals("features") && method.equals("GET")) {
+					send(exchange, 200, getSelectedFeatures(session).toString());
+				} else if (resource.equals("features") && method.equals("PUT")) {
+					setSelectedFeatures(session, readArray(exchange));
+					send(exchange, 200, getSelectedFeatures(session).toString());
+				} else if (resource.equals("route") && method.equals("GET")) {
+					send(exchange, 200, getRoute(session).toString());
+				} else {
+					send(exchange, 404, error("No resource " + exchange.getRequestURI().getPath()));
+				}
+			} catch (JSONException e) {
+				send(exchange, 400, error(e.getMessage()));
+			} catch (IllegalArgumentException e) {
+				send(exchange, 400, error(e.getMessage()));
+			} catch (IOException e) {
+				send(exchange, 502, error("Routing service failed: " + e.getMessage()));
+			} catch (RuntimeException e) {
+				sendInternalError(exchange, e);
+			}
+		}
+	}
+
+	private String createSession() {
+		// drop expired sessions whenever a new one is made, so that the map
+		// cannot grow without bound
+		long now = System.currentTimeMillis();
+		Iterator<Session> it = sessions.values().iterator();
+		while (it.hasNext()) {
+			if (now - it.next().lastAccess > SESSION_TIMEOUT) {
+				it.remove();
+			}
+		}
+
+		String id = UUID.randomUUID().toString();
+		sessions.put(id, new Session(new TourState(registry, storeFactory.createStore(id))));
+		return id;
+	}
+
+	private List<PointOfInterest> getSelectedPOIs(Session session) {
+		synchronized (session) {
+			return new ArrayList<PointOfInterest>(session.tourState.getSelectedPOIs());
+		}
+	}
+
+	private void setSelectedPOIs(Session session, JSONArray ids) throws JSONException {
+		Set<PointOfInterest> selected = new HashSet<PointOfInterest>();
+		for (int i = 0; i < ids.length(); i++) {
+			PointOfInterest poi = registry.lookupPoint(ids.getString(i));
+			if (poi == null) {
+				throw new IllegalArgumentException("No POI " + ids.getString(i));
+			}
+			selected.add(poi);
+		}
+		// the tour visits the POIs in walking tour order, whatever order
+		// their ids were given in
+		List<PointOfInterest> pois = new ArrayList<PointOfInterest>(selected.size());
+		for (PointOfInterest poi : registry.getPointsByLocation()) {
+			if (selected.contains(poi)) {
+				pois.add(poi);
+			}
+		}
+		synchronized (session) {
+			session.tourState.setSelectedPOIs(pois);
+		}
+	}
+
+	private JSONArray getSelectedFeatures(Session session) {
+		JSONArray result = new JSONArray();
+		synchronized (session) {
+			for (Feature f : session.tourState.getSelectedFeatures()) {
+				result.put(f.name());
+			}
+		}
+		return result;
+	}
+
+	private void setSelectedFeatures(Session session, JSONArray names) throws JSONException {
+		List<Feature> features = new ArrayList<Feature>();
+		for (int i = 0; i < names.length(); i++) {
+			features.add(Feature.valueOf(names.getString(i)));
+		}
+		synchronized (session) {
+			session.tourState.setSelectedFeatures(features);
+		}
+	}
+
+	/**
+	 * Get the route of a session's tour. The routes are requested outside the session's lock, as
+	 * they may take a while.
+	 */
+	private JSONObject getRoute(Session session) throws IOException, JSONException {
+		List<PointOfInterest> pois = getSelectedPOIs(session);
+		List<LatLong> points = new ArrayList<LatLong>();
+		for (PointOfInterest poi : pois) {
+			points.add(poi.getLatLong());
+		}
+		if (pois.size() > 1) {
+			// complete the tour loop
+			points.add(pois.get(0).getLatLong());
+		}
+
+		JSONArray legs = new JSONArray();
+		List<RouteInfo> routes = routingService.getRoutes(points, true);
+		for (int i = 0; i < routes.size(); i++) {
+			RouteInfo route = routes.get(i);
+			JSONObject leg = new JSONObject();
+			leg.put("from", pois.get(i).getId());
+			leg.put("to", pois.get((i + 1) % pois.size()).getId());
+			if (route == null) {
+				leg.put("coordinates", JSONObject.NULL);
+			} else {
+				leg.put("approximate", route.isApproximate());
+				JSONArray coordinates = new JSONArray();
+				for (LatLong ll : route.getWaypoints()) {
+					coordinates.put(new JSONArray().put(ll.getLongitude()).put(ll.getLatitude()));
+				}
+				leg.put("coordinates", coordinates);
+			}
+			legs.put(leg);
+		}
+		return new JSONObject().put("legs", legs);
+	}
+
+	private static JSONArray toJson(List<PointOfInterest> pois) throws JSONException {
+		JSONArray result = new JSONArray();
+		for (PointOfInterest poi : pois) {
+			JSONObject o = new JSONObject();
+			o.put("id", poi.getId());
+			o.put("name", poi.getDisplayName());
+			o.put("latitude", poi.getLatLong().getLatitude());
+			o.put("longitude", poi.getLatLong().getLongitude());
+			JSONArray features = new JSONArray();
+			for (Feature f : poi.getFeatures()) {
+				features.put(f.name());
+			}
+			o.put("features", features);
+			result.put(o);
+		}
+		return result;
+	}
+
+	private static JSONArray readArray(HttpExchange exchange) throws IOException, JSONException {
+		StringBuilder sb = new StringBuilder();
+		InputStream in = exchange.getRequestBody();
+		try {
+			Reader reader = new InputStreamReader(in, UTF8);
+			char[] buffer = new char[4096];
+			int n;
+			while ((n = reader.read(buffer)) != -1) {
+				sb.append(buffer, 0, n);
+			}
+		} finally {
+			in.close();
+		}
+		return new JSONArray(sb.toString());
+	}
+
+	/**
+	 * Get the value of a parameter of a query string.
+	 *
+	 * @param rawQuery
+	 *            The query string, still percent-encoded, or null.
+	 * @return The decoded value of the first occurrence of the parameter, or null if it is
+	 *         absent.
+	 * @throws IllegalArgumentException
+	 *             If the value is not properly encoded.
+	 */
+	private static String getParameter(String rawQuery, String name) throws UnsupportedEncodingException {
+		if (rawQuery == null) {
+			return null;
+		}
+		for (String pair : rawQuery.split("&")) {
+			int equals = pair.indexOf('=');
+			String key = equals < 0 ? pair : pair.substring(0, equals);
+			if (URLDecoder.decode(key, "UTF-8").equals(name)) {
+				return equals < 0 ? "" : URLDecoder.decode(pair.substring(equals + 1), "UTF-8");
+			}
+		}
+		return null;
+	}
+
+	private static String error(String message) {
+		try {
+			return new JSONObject().put("error", String.valueOf(message)).toString();
+		} catch (JSONException e) {
+			return "{}";
+		}
+	}
+
+	/**
+	 * Answer a request which failed with an unexpected exception, rather than leaving the client
+	 * without a response.
+	 */
+	private static void sendInternalError(HttpExchange exchange, RuntimeException e) throws IOException {
+		LOG.log(Level.WARNING, "Error handling " + exchange.getRequestMethod() + " "
+				+ exchange.getRequestURI(), e);
+		send(exchange, 500, error("Internal error"));
+	}
+
+	private static void send(HttpExchange exchange, int status, String body) throws IOException {
+		if (body == null) {
+			exchange.sendResponseHeaders(status, -1);
+			exchange.close();
+			return;
+		}
+		byte[] bytes = body.getBytes(UTF8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+		exchange.sendResponseHeaders(status, bytes.length);
+		OutputStream out = exchange.getResponseBody();
+		try {
+			out.write(bytes);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Poll the map data version held by a shared route cache, passing changes on to a cache, so
+	 * that every node moves onto new map data when the version is set on the cache server.
+	 */
+	private static void followSharedVersion(final RemoteRouteCache remote, final RouteCache cache) {
+		ScheduledExecutorService poller = Executors.newSingleThreadScheduledExecutor();
+		poller.scheduleWithFixedDelay(new Runnable() {
+			private long version;
+
+			@Override
+			public void run() {
+				try {
+					long shared = remote.getSharedVersion();
+					if (shared != version) {
+						version = shared;
+						cache.setVersion(shared);
+					}
+				} catch (IOException e) {
+					LOG.fine("Route cache version unavailable: " + e.getMessage());
+				}
+			}
+		}, 0, ROUTE_CACHE_VERSION_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int port = args.length > 0 ? Integer.parseInt(args[0]) : 8000;
+		String baseUrl = args.length > 1 ? args[1] : RoutingService.DEFAULT_BASE_URL;
+		int threads = args.length > 2 ? Integer.parseInt(args[2]) : 64;
+		String routeCache = args.length > 3 ? args[3] : null;
+
+		RoutingTransportConfig transport = new RoutingTransportConfig();
+		transport.setMaxConnections(threads);
+		transport.setMaxConnectionsPerRoute(threads);
+		RoutingService routingService = new RoutingService(baseUrl, transport);
+		routingService.setSymmetricRoutes(true);
+		routingService.setStraightLineFallback(true);
+		if (routeCache != null) {
+			int colon = routeCache.lastIndexOf(':');
+			RemoteRouteCache remote = new RemoteRouteCache(routeCache.substring(0, colon),
+					Integer.parseInt(routeCache.substring(colon + 1)), ROUTE_CACHE_TIMEOUT);
+			TieredRouteCache tiered = new TieredRouteCache(new LocalRouteCache(ROUTE_CACHE_SIZE), remote);
+			routingService.setRouteCache(tiered);
+			followSharedVersion(remote, tiered);
+		}
+
+		TourServer server = new TourServer(port, POIRegistry.getDefault(), routingService,
+				new StoreFactory() {
+					@Override
+					public KeyValueStore createStore(String sessionId) {
+						return new MemoryKeyValueStore();
+					}
+				});
+		ExecutorService executor = Executors.newFixedThreadPool(threads);
+		server.setExecutor(executor);
+		server.start();
+		System.out.println("Tour server listening on http://localhost:" + server.getPort() + "/");
+	}
+}